@@ -0,0 +1,99 @@
+package sh.libre.scim.core;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
+
+import jakarta.persistence.EntityManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import de.captaingoldfish.scim.sdk.client.ScimClientConfig;
+import de.captaingoldfish.scim.sdk.client.ScimRequestBuilder;
+import de.captaingoldfish.scim.sdk.client.builder.PatchBuilder;
+import de.captaingoldfish.scim.sdk.common.resources.Group;
+
+/**
+ * Conversion of a group to its SCIM representation, including the lookup of
+ * the SCIM ids of its members. Every member already has a mapping, so the
+ * numbers don't include inserts. With {@code cachedMappings} off the mapping
+ * cache is disabled and every lookup reaches the database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class GroupAdapterBenchmark {
+    private static final String URL = "http://localhost/scim/v2";
+
+    @Param({ "10", "1000", "10000", "100000" })
+    public int memberCount;
+
+    @Param({ "true", "false" })
+    public boolean cachedMappings;
+
+    private MappingDatabase database;
+    private EntityManager em;
+    private ScimRequestBuilder requestBuilder;
+    private GroupAdapter adapter;
+    private Group resource;
+
+    @Setup
+    public void setup() throws SQLException {
+        ScimMappingCache.configure(cachedMappings ? memberCount : 0, 3600);
+        database = new MappingDatabase();
+        database.populate("User", memberCount);
+        em = database.createEntityManager();
+        var members = LongStream.range(0, memberCount)
+                .mapToObj(i -> Stubs.user(MappingDatabase.id("User", i), List.of(), List.of()))
+                .toList();
+        var session = Stubs.session(Stubs.realm(), em, members);
+        adapter = new GroupAdapter(session, Stubs.COMPONENT_ID);
+        adapter.apply(Stubs.group("group-0", List.of()));
+        adapter.setExternalId("ext-group-0");
+        requestBuilder = new ScimRequestBuilder(URL, ScimClientConfig.builder().build());
+        resource = adapter.toSCIM(true);
+    }
+
+    // Mappings read by a benchmark stay managed otherwise.
+    @Setup(Level.Invocation)
+    public void clear() {
+        em.clear();
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        em.close();
+        database.close();
+        ScimMappingCache.configure(10000, 300);
+    }
+
+    @Benchmark
+    public Group toSCIM() {
+        return adapter.toSCIM(true);
+    }
+
+    @Benchmark
+    public PatchBuilder<Group> toPatchBuilder() {
+        return adapter.toPatchBuilder(requestBuilder, URL + "/Groups/ext-group-0");
+    }
+
+    @Benchmark
+    public String serialize() {
+        return resource.toString();
+    }
+
+    @Benchmark
+    public String fingerprint() {
+        return Adapter.fingerprint(resource);
+    }
+}
@@ -0,0 +1,100 @@
+package sh.libre.scim.core;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.UUID;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+
+import org.hibernate.cfg.Configuration;
+
+import sh.libre.scim.jpa.ScimResource;
+
+/**
+ * In-memory H2 database holding the SCIM_RESOURCE table with the keys of one of
+ * the changelog versions, and Hibernate on top of it.
+ * Mappings are generated with ids {@code <type>-<i>} and external ids
+ * {@code ext-<type>-<i>}.
+ */
+public class MappingDatabase implements AutoCloseable {
+    /**
+     * Keys of SCIM_RESOURCE: {@code V1} is the composite primary key of every
+     * column of changeset scim-resource-1.0, {@code V2} the primary key and
+     * unique constraint of scim-resource-2.0.
+     */
+    public enum Schema {
+        V1("CONSTRAINT PK_SCIM_RESOURCE PRIMARY KEY (ID, REALM_ID, TYPE, COMPONENT_ID, EXTERNAL_ID)"),
+        V2("""
+                CONSTRAINT PK_SCIM_RESOURCE PRIMARY KEY (REALM_ID, COMPONENT_ID, TYPE, ID),
+                CONSTRAINT UK_SCIM_RESOURCE_EXTERNAL_ID UNIQUE (REALM_ID, COMPONENT_ID, TYPE, EXTERNAL_ID)""");
+
+        final private String constraints;
+
+        Schema(String constraints) {
+            this.constraints = constraints;
+        }
+    }
+
+    final private String url = "jdbc:h2:mem:scim-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1";
+    final private EntityManagerFactory emf;
+
+    public MappingDatabase() throws SQLException {
+        this(Schema.V2);
+    }
+
+    public MappingDatabase(Schema schema) throws SQLException {
+        execute("""
+                CREATE TABLE SCIM_RESOURCE (
+                    ID VARCHAR(36) NOT NULL,
+                    REALM_ID VARCHAR(36) NOT NULL,
+                    TYPE VARCHAR(36) NOT NULL,
+                    COMPONENT_ID VARCHAR(36) NOT NULL,
+                    EXTERNAL_ID VARCHAR(36) NOT NULL,
+                    FINGERPRINT VARCHAR(64),
+                    %s
+                )""".formatted(schema.constraints));
+        emf = new Configuration()
+                .addAnnotatedClass(ScimResource.class)
+                .setProperty("hibernate.connection.url", url)
+                .setProperty("hibernate.hbm2ddl.auto", "none")
+                .setProperty("hibernate.show_sql", "false")
+                .buildSessionFactory();
+    }
+
+    public static String id(String type, long i) {
+        return type + "-" + i;
+    }
+
+    public static String externalId(String type, long i) {
+        return "ext-" + type + "-" + i;
+    }
+
+    /**
+     * Inserts {@code count} mappings of the given type for
+     * {@link Stubs#REALM_ID} and {@link Stubs#COMPONENT_ID}.
+     */
+    public void populate(String type, long count) throws SQLException {
+        execute("""
+                INSERT INTO SCIM_RESOURCE (ID, REALM_ID, TYPE, COMPONENT_ID, EXTERNAL_ID)
+                SELECT '%1$s-' || X, '%2$s', '%1$s', '%3$s', 'ext-%1$s-' || X FROM SYSTEM_RANGE(0, %4$d)
+                """.formatted(type, Stubs.REALM_ID, Stubs.COMPONENT_ID, count - 1));
+        execute("ANALYZE");
+    }
+
+    public EntityManager createEntityManager() {
+        return emf.createEntityManager();
+    }
+
+    private void execute(String sql) throws SQLException {
+        try (var connection = DriverManager.getConnection(url); var statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        emf.close();
+        execute("SHUTDOWN");
+    }
+}
@@ -0,0 +1,91 @@
+package sh.libre.scim.core;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
+
+import jakarta.persistence.EntityManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import sh.libre.scim.jpa.ScimResource;
+
+/**
+ * Named mapping queries of {@link Adapter} against an H2 SCIM_RESOURCE table
+ * holding {@code mappingCount} users and as many groups, with the keys of the
+ * old ({@code V1}) or current ({@code V2}) schema. These bypass the mapping
+ * cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MappingQueryBenchmark {
+    @Param({ "10000", "100000", "1000000" })
+    public long mappingCount;
+
+    @Param({ "V1", "V2" })
+    public MappingDatabase.Schema schema;
+
+    private MappingDatabase database;
+    private EntityManager em;
+    private UserAdapter adapter;
+
+    @Setup
+    public void setup() throws SQLException {
+        database = new MappingDatabase(schema);
+        database.populate("User", mappingCount);
+        database.populate("Group", mappingCount);
+        em = database.createEntityManager();
+        adapter = new UserAdapter(Stubs.session(Stubs.realm(), em, List.of()), Stubs.COMPONENT_ID);
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        em.close();
+        database.close();
+    }
+
+    private long randomIndex() {
+        return ThreadLocalRandom.current().nextLong(mappingCount);
+    }
+
+    @Benchmark
+    public ScimResource findById() {
+        var mapping = adapter.query("findById", MappingDatabase.id("User", randomIndex())).getSingleResult();
+        em.clear();
+        return mapping;
+    }
+
+    @Benchmark
+    public ScimResource findByExternalId() {
+        var mapping = adapter.query("findByExternalId", MappingDatabase.externalId("User", randomIndex()))
+                .getSingleResult();
+        em.clear();
+        return mapping;
+    }
+
+    /**
+     * One chunk of {@link Adapter#QUERY_CHUNK_SIZE} ids, as resolved for the
+     * members of a group.
+     */
+    @Benchmark
+    public List<ScimResource> findByIds() {
+        var start = ThreadLocalRandom.current().nextLong(mappingCount - Adapter.QUERY_CHUNK_SIZE);
+        var ids = LongStream.range(start, start + Adapter.QUERY_CHUNK_SIZE)
+                .mapToObj(i -> MappingDatabase.id("User", i))
+                .toList();
+        var mappings = adapter.queryIn("findByIds", ids, "User");
+        em.clear();
+        return mappings;
+    }
+}
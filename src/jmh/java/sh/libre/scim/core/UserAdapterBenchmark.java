@@ -0,0 +1,72 @@
+package sh.libre.scim.core;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import de.captaingoldfish.scim.sdk.common.resources.User;
+
+/**
+ * Conversion of a user to its SCIM representation. Half of the roles are
+ * mapped directly and half through two groups, every other role is flagged
+ * {@code scim=true}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UserAdapterBenchmark {
+    @Param({ "0", "10", "100", "1000" })
+    public int roleCount;
+
+    private KeycloakSession session;
+    private UserModel user;
+    private UserAdapter applied;
+    private User resource;
+
+    @Setup
+    public void setup() {
+        session = Stubs.session(Stubs.realm(), null, List.of());
+        var direct = Stubs.roles("direct", roleCount / 2);
+        var inherited = Stubs.roles("group", roleCount - roleCount / 2);
+        var groups = List.of(
+                Stubs.group("group-a", inherited.subList(0, inherited.size() / 2)),
+                Stubs.group("group-b", inherited.subList(inherited.size() / 2, inherited.size())));
+        user = Stubs.user("user-0", direct, groups);
+        applied = new UserAdapter(session, Stubs.COMPONENT_ID);
+        applied.apply(user);
+        applied.setExternalId("ext-user-0");
+        resource = applied.toSCIM(true);
+    }
+
+    @Benchmark
+    public UserAdapter apply() {
+        var adapter = new UserAdapter(session, Stubs.COMPONENT_ID);
+        adapter.apply(user);
+        return adapter;
+    }
+
+    @Benchmark
+    public User toSCIM() {
+        return applied.toSCIM(true);
+    }
+
+    @Benchmark
+    public String serialize() {
+        return resource.toString();
+    }
+
+    @Benchmark
+    public String fingerprint() {
+        return Adapter.fingerprint(resource);
+    }
+}
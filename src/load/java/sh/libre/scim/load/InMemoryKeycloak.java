@@ -0,0 +1,309 @@
+package sh.libre.scim.load;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+
+import org.hibernate.cfg.Configuration;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.GroupProvider;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+
+import sh.libre.scim.core.Stubs;
+import sh.libre.scim.jpa.ScimResourceProvider;
+
+/**
+ * Just enough of a Keycloak server to run the extension outside of it: one
+ * realm whose users, groups and roles live in memory, sessions with a
+ * transaction manager running after-completion tasks, and the SCIM tables in
+ * an H2 database through Hibernate.
+ * Models are proxies implementing only what the extension calls, anything else
+ * throws {@link UnsupportedOperationException} so gaps show up right away.
+ */
+public class InMemoryKeycloak implements AutoCloseable {
+    public static final String REALM_ID = "load";
+
+    public static class UserData {
+        final String id = UUID.randomUUID().toString();
+        volatile String username;
+        volatile String firstName;
+        volatile String lastName;
+        volatile String email;
+        volatile boolean enabled = true;
+        volatile boolean emailVerified = true;
+        final Set<String> groupIds = ConcurrentHashMap.newKeySet();
+        final List<RoleModel> roles = new CopyOnWriteArrayList<>();
+
+        public String getId() {
+            return id;
+        }
+    }
+
+    public static class GroupData {
+        final String id = UUID.randomUUID().toString();
+        volatile String name;
+        final Set<String> memberIds = new ConcurrentSkipListSet<>();
+        final List<RoleModel> roles = new CopyOnWriteArrayList<>();
+
+        public String getId() {
+            return id;
+        }
+    }
+
+    final private EntityManagerFactory emf;
+    final private Map<String, UserData> users = new ConcurrentSkipListMap<>();
+    final private Map<String, GroupData> groups = new ConcurrentSkipListMap<>();
+    final private List<ComponentModel> components = new CopyOnWriteArrayList<>();
+    final private RealmModel realm;
+    final private KeycloakSessionFactory sessionFactory;
+
+    public InMemoryKeycloak(int connections) {
+        var configuration = new Configuration()
+                .setProperty("hibernate.connection.url",
+                        "jdbc:h2:mem:scim-load-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1")
+                .setProperty("hibernate.connection.pool_size", Integer.toString(connections))
+                .setProperty("hibernate.hbm2ddl.auto", "create")
+                .setProperty("hibernate.show_sql", "false");
+        new ScimResourceProvider().getEntities().forEach(configuration::addAnnotatedClass);
+        emf = configuration.buildSessionFactory();
+        realm = Stubs.realm(REALM_ID, components);
+        sessionFactory = Stubs.stub(KeycloakSessionFactory.class, Map.of(
+                "create", args -> createSession(),
+                "close", args -> null));
+    }
+
+    public KeycloakSessionFactory getSessionFactory() {
+        return sessionFactory;
+    }
+
+    public RealmModel getRealm() {
+        return realm;
+    }
+
+    public void addComponent(ComponentModel model) {
+        components.add(model);
+    }
+
+    public UserData addUser(String username) {
+        var data = new UserData();
+        data.username = username;
+        data.firstName = "First";
+        data.lastName = username;
+        data.email = username + "@example.org";
+        users.put(data.id, data);
+        return data;
+    }
+
+    public void updateUser(String id, String lastName) {
+        users.get(id).lastName = lastName;
+    }
+
+    public GroupData addGroup(String name) {
+        var data = new GroupData();
+        data.name = name;
+        groups.put(data.id, data);
+        return data;
+    }
+
+    public void joinGroup(String userId, String groupId) {
+        users.get(userId).groupIds.add(groupId);
+        groups.get(groupId).memberIds.add(userId);
+    }
+
+    public int getUserCount() {
+        return users.size();
+    }
+
+    public int getGroupCount() {
+        return groups.size();
+    }
+
+    private UserModel user(UserData data) {
+        if (data == null) {
+            return null;
+        }
+        return Stubs.stub(UserModel.class, Map.ofEntries(
+                Map.entry("getId", args -> data.id),
+                Map.entry("getUsername", args -> data.username),
+                Map.entry("getFirstName", args -> data.firstName),
+                Map.entry("getLastName", args -> data.lastName),
+                Map.entry("getEmail", args -> data.email),
+                Map.entry("isEnabled", args -> data.enabled),
+                Map.entry("isEmailVerified", args -> data.emailVerified),
+                Map.entry("getFirstAttribute", args -> null),
+                Map.entry("getRoleMappingsStream", args -> data.roles.stream()),
+                Map.entry("getGroupsStream", args -> data.groupIds.stream().map(groups::get).map(this::group)),
+                Map.entry("setFirstName", args -> data.firstName = (String) args[0]),
+                Map.entry("setLastName", args -> data.lastName = (String) args[0]),
+                Map.entry("setEmail", args -> data.email = (String) args[0]),
+                Map.entry("setEnabled", args -> data.enabled = (Boolean) args[0]),
+                Map.entry("joinGroup", args -> {
+                    joinGroup(data.id, ((GroupModel) args[0]).getId());
+                    return null;
+                })));
+    }
+
+    private GroupModel group(GroupData data) {
+        if (data == null) {
+            return null;
+        }
+        return Stubs.stub(GroupModel.class, Map.of(
+                "getId", args -> data.id,
+                "getName", args -> data.name,
+                "getFirstAttribute", args -> null,
+                "getRoleMappingsStream", args -> data.roles.stream(),
+                "getParent", args -> null,
+                "getParentId", args -> null,
+                "getSubGroupsStream", args -> Stream.empty()));
+    }
+
+    private Stream<UserModel> members(GroupModel group, Object[] args) {
+        var members = groups.get(group.getId()).memberIds.stream();
+        if (args.length == 4) {
+            members = members.skip((Integer) args[2]).limit((Integer) args[3]);
+        }
+        return members.map(users::get).map(this::user);
+    }
+
+    private UserModel findUser(Function<UserData, String> attribute, Object value) {
+        return users.values().stream().filter(u -> value.equals(attribute.apply(u))).findFirst()
+                .map(this::user).orElse(null);
+    }
+
+    private KeycloakSession createSession() {
+        var em = emf.createEntityManager();
+        var currentRealm = new RealmModel[1];
+        var keycloakContext = Stubs.stub(KeycloakContext.class, Map.of(
+                "getRealm", args -> currentRealm[0],
+                "setRealm", args -> currentRealm[0] = (RealmModel) args[0]));
+        var jpa = Stubs.stub(JpaConnectionProvider.class, Map.of(
+                "getEntityManager", args -> em,
+                "close", args -> null));
+        var userProvider = Stubs.stub(UserProvider.class, Map.of(
+                "getUserById", args -> user(users.get((String) args[1])),
+                "getUserByUsername", args -> findUser(u -> u.username, args[1]),
+                "getUserByEmail", args -> findUser(u -> u.email, args[1]),
+                "addUser", args -> user(addUser((String) args[1])),
+                "searchForUserStream", args -> users.values().stream().filter(u -> u.enabled).map(this::user),
+                "getGroupMembersStream", args -> members((GroupModel) args[1], args)));
+        var groupProvider = Stubs.stub(GroupProvider.class, Map.of(
+                "getGroupById", args -> group(groups.get((String) args[1])),
+                "getGroupsStream", args -> groups.values().stream().map(this::group),
+                "createGroup", args -> group(addGroup((String) args[args.length - 1]))));
+        var realmProvider = Stubs.stub(RealmProvider.class, Map.of(
+                "getRealm", args -> REALM_ID.equals(args[0]) ? realm : null));
+        var transaction = new Transaction(em);
+        var attributes = new ConcurrentHashMap<String, Object>();
+        return Stubs.stub(KeycloakSession.class, Map.ofEntries(
+                Map.entry("getAttribute", args -> attributes.get((String) args[0])),
+                Map.entry("setAttribute", args -> attributes.put((String) args[0], args[1])),
+                Map.entry("removeAttribute", args -> attributes.remove((String) args[0])),
+                Map.entry("getContext", args -> keycloakContext),
+                Map.entry("getTransactionManager", args -> transaction.manager),
+                Map.entry("getKeycloakSessionFactory", args -> sessionFactory),
+                Map.entry("getProvider", args -> JpaConnectionProvider.class.equals(args[0]) ? jpa : null),
+                Map.entry("users", args -> userProvider),
+                Map.entry("groups", args -> groupProvider),
+                Map.entry("realms", args -> realmProvider),
+                Map.entry("close", args -> {
+                    transaction.close();
+                    em.close();
+                    return null;
+                })));
+    }
+
+    /**
+     * Transaction of a session: the entity manager transaction, then the
+     * after-completion tasks. Closing the session commits it unless it was
+     * marked rollback only, like Keycloak does.
+     */
+    private static class Transaction {
+        final private EntityManager em;
+        final private List<KeycloakTransaction> afterCompletion = new ArrayList<>();
+        final KeycloakTransactionManager manager;
+        private boolean active;
+        private boolean rollbackOnly;
+
+        Transaction(EntityManager em) {
+            this.em = em;
+            this.manager = Stubs.stub(KeycloakTransactionManager.class, Map.of(
+                    "begin", args -> {
+                        begin();
+                        return null;
+                    },
+                    "commit", args -> {
+                        commit();
+                        return null;
+                    },
+                    "rollback", args -> {
+                        rollback();
+                        return null;
+                    },
+                    "setRollbackOnly", args -> rollbackOnly = true,
+                    "getRollbackOnly", args -> rollbackOnly,
+                    "isActive", args -> active,
+                    "enlistAfterCompletion", args -> {
+                        var task = (KeycloakTransaction) args[0];
+                        task.begin();
+                        afterCompletion.add(task);
+                        return null;
+                    }));
+        }
+
+        void begin() {
+            em.getTransaction().begin();
+            active = true;
+        }
+
+        void commit() {
+            if (rollbackOnly) {
+                rollback();
+                return;
+            }
+            active = false;
+            em.getTransaction().commit();
+            afterCompletion.forEach(KeycloakTransaction::commit);
+            afterCompletion.clear();
+        }
+
+        void rollback() {
+            active = false;
+            em.getTransaction().rollback();
+            afterCompletion.forEach(KeycloakTransaction::rollback);
+            afterCompletion.clear();
+        }
+
+        void close() {
+            if (active) {
+                commit();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        emf.close();
+    }
+}
@@ -0,0 +1,53 @@
+package sh.libre.scim.load;
+
+import java.util.Arrays;
+
+/**
+ * Keeps every recorded duration so percentiles are exact. A load run records
+ * at most a few million values, a few tens of MB.
+ */
+public class LatencyRecorder {
+    private long[] values = new long[1024];
+    private int count;
+
+    public synchronized void record(long nanos) {
+        if (count == values.length) {
+            values = Arrays.copyOf(values, values.length * 2);
+        }
+        values[count++] = nanos;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    public synchronized void reset() {
+        values = new long[1024];
+        count = 0;
+    }
+
+    public synchronized Summary summarize() {
+        var sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        return new Summary(count, percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+                count == 0 ? 0 : sorted[count - 1] / 1_000_000d);
+    }
+
+    private static double percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        var index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1_000_000d;
+    }
+
+    /**
+     * Percentiles in milliseconds.
+     */
+    public record Summary(int count, double p50, double p90, double p99, double max) {
+        @Override
+        public String toString() {
+            return "n=%d p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms".formatted(count, p50, p90, p99, max);
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package sh.libre.scim.load;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import org.keycloak.component.ComponentModel;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.UserStorageProvider;
+import org.keycloak.storage.UserStorageProviderModel;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import de.captaingoldfish.scim.sdk.common.constants.HttpHeader;
+
+import sh.libre.scim.core.ScimAsyncExecutor;
+import sh.libre.scim.core.ScimClientRegistry;
+import sh.libre.scim.core.ScimDispatcher;
+import sh.libre.scim.core.Stubs;
+import sh.libre.scim.event.ScimEventListenerProvider;
+import sh.libre.scim.storage.ScimStorageProviderFactory;
+
+/**
+ * Drives the whole propagation pipeline against {@link MockScimServer}:
+ * synthetic admin events go through {@link ScimEventListenerProvider}, then
+ * {@link ScimStorageProviderFactory#sync} reconciles everything, and a
+ * {@link LoadReport} is printed. Everything runs in-process, no network
+ * access or Keycloak server is needed.
+ * <p>
+ * Options are given as {@code key=value} arguments, see {@link Options}.
+ */
+public class LoadDriver {
+    private static final String COMPONENT_ID = "load-component";
+
+    /**
+     * Settings of a run, with their defaults. Each public field can be set with
+     * a {@code name=value} argument.
+     */
+    public static class Options {
+        // Keycloak side
+        public int users = 1000;
+        public int groups = 20;
+        public int membershipsPerUser = 2;
+        public int rolesPerUser = 4;
+        public int updates = 500;
+        public int clients = 4;
+        public String mode = "sync";
+        public int asyncWorkers = 4;
+        public int asyncQueueSize = 1000;
+        public int syncRuns = 1;
+        // Component configuration
+        public boolean bulk = false;
+        public boolean groupPatchOp = true;
+        public boolean userPatchOp = false;
+        public int refreshConcurrency = 1;
+        public int maxInFlight = 8;
+        public int pageSize = 100;
+        public String importAction = "CREATE_LOCAL";
+        // Service provider behavior
+        public int remoteUsers = 0;
+        public long latency = 0;
+        public long jitter = 0;
+        public double errorRate = 0;
+        public double throttleRate = 0;
+        public int retryAfter = 0;
+        public int serverThreads = 32;
+        // Output
+        public String report = null;
+        public boolean verbose = false;
+
+        public static Options parse(String[] args) throws ReflectiveOperationException {
+            var options = new Options();
+            for (var arg : args) {
+                var separator = arg.indexOf('=');
+                if (separator < 0) {
+                    throw new IllegalArgumentException("Expected name=value, got " + arg);
+                }
+                var field = Options.class.getField(arg.substring(0, separator).replaceFirst("^--", ""));
+                var value = arg.substring(separator + 1);
+                if (field.getType() == int.class) {
+                    field.setInt(options, Integer.parseInt(value));
+                } else if (field.getType() == long.class) {
+                    field.setLong(options, Long.parseLong(value));
+                } else if (field.getType() == double.class) {
+                    field.setDouble(options, Double.parseDouble(value));
+                } else if (field.getType() == boolean.class) {
+                    field.setBoolean(options, Boolean.parseBoolean(value));
+                } else {
+                    field.set(options, value);
+                }
+            }
+            return options;
+        }
+    }
+
+    final private Options options;
+    final private MockScimServer server;
+    final private InMemoryKeycloak keycloak;
+    final private ScimClientRegistry registry = ScimClientRegistry.getInstance();
+    final private ScimDispatcher.Mode mode;
+    final private ScimAsyncExecutor executor;
+    final private ComponentModel component;
+    final private LoadReport report = new LoadReport();
+    final private Random random = new Random(42);
+
+    public LoadDriver(Options options) throws Exception {
+        this.options = options;
+        var serverOptions = new MockScimServer.Options();
+        serverOptions.latencyMillis = options.latency;
+        serverOptions.latencyJitterMillis = options.jitter;
+        serverOptions.errorRate = options.errorRate;
+        serverOptions.throttleRate = options.throttleRate;
+        serverOptions.retryAfterSeconds = options.retryAfter;
+        serverOptions.threads = options.serverThreads;
+        this.server = new MockScimServer(serverOptions);
+        server.seedUsers(options.remoteUsers);
+        this.keycloak = new InMemoryKeycloak(
+                options.clients + options.asyncWorkers + options.refreshConcurrency + options.maxInFlight + 4);
+        this.component = component();
+        keycloak.addComponent(component);
+        this.mode = ScimDispatcher.Mode.valueOf(options.mode.toUpperCase());
+        this.executor = mode == ScimDispatcher.Mode.ASYNC
+                ? new ScimAsyncExecutor(keycloak.getSessionFactory(), registry, options.asyncWorkers,
+                        options.asyncQueueSize, ScimAsyncExecutor.REJECT_CALLER_RUNS, 0)
+                : null;
+    }
+
+    private ComponentModel component() {
+        var model = new ComponentModel();
+        model.setId(COMPONENT_ID);
+        model.setName("mock");
+        model.setParentId(InMemoryKeycloak.REALM_ID);
+        model.setProviderId(ScimStorageProviderFactory.ID);
+        model.setProviderType(UserStorageProvider.class.getName());
+        model.put("endpoint", server.getBaseUrl());
+        model.put("content-type", HttpHeader.SCIM_CONTENT_TYPE);
+        model.put("auth-mode", "NONE");
+        model.put("propagation-user", "true");
+        model.put("propagation-group", "true");
+        model.put("sync-import", Boolean.toString(options.remoteUsers > 0));
+        model.put("sync-import-action", options.importAction);
+        model.put("sync-import-page-size", Integer.toString(options.pageSize));
+        model.put("sync-refresh", "true");
+        model.put("sync-refresh-concurrency", Integer.toString(options.refreshConcurrency));
+        model.put("sync-bulk", Boolean.toString(options.bulk));
+        model.put("group-patchOp", Boolean.toString(options.groupPatchOp));
+        model.put("user-patchOp", Boolean.toString(options.userPatchOp));
+        model.put("max-in-flight", Integer.toString(options.maxInFlight));
+        return model;
+    }
+
+    public LoadReport run() throws Exception {
+        var roles = new ArrayList<RoleModel>();
+        for (int i = 0; i < 20; i++) {
+            roles.add(Stubs.role("role-" + i, i % 2 == 0));
+        }
+
+        var userIds = new ArrayList<String>();
+        runEvents("create-users", options.users, i -> {
+            var user = keycloak.addUser("user-" + i);
+            for (int r = 0; r < options.rolesPerUser; r++) {
+                user.roles.add(roles.get(random(roles.size())));
+            }
+            synchronized (userIds) {
+                userIds.add(user.getId());
+            }
+            return event(ResourceType.USER, OperationType.CREATE, "users/" + user.getId());
+        });
+
+        var groupIds = new ArrayList<String>();
+        runEvents("create-groups", options.groups, i -> {
+            var group = keycloak.addGroup("group-" + i);
+            group.roles.add(roles.get(random(roles.size())));
+            synchronized (groupIds) {
+                groupIds.add(group.getId());
+            }
+            return event(ResourceType.GROUP, OperationType.CREATE, "groups/" + group.getId());
+        });
+
+        if (!groupIds.isEmpty()) {
+            runEvents("join-groups", options.users * options.membershipsPerUser, i -> {
+                var userId = userIds.get(i % userIds.size());
+                var groupId = groupIds.get(random(groupIds.size()));
+                keycloak.joinGroup(userId, groupId);
+                return event(ResourceType.GROUP_MEMBERSHIP, OperationType.CREATE,
+                        "users/" + userId + "/groups/" + groupId);
+            });
+        }
+
+        runEvents("update-users", Math.min(options.updates, userIds.size()), i -> {
+            var userId = userIds.get(random(userIds.size()));
+            keycloak.updateUser(userId, "updated-" + i);
+            return event(ResourceType.USER, OperationType.UPDATE, "users/" + userId);
+        });
+
+        for (int i = 0; i < options.syncRuns; i++) {
+            runSync("sync-" + (i + 1));
+        }
+
+        report.server("users", server.getResourceCount("Users"));
+        report.server("groups", server.getResourceCount("Groups"));
+        report.server("request latency", server.getLatencies().summarize());
+        report.server("injected errors", server.getInjectedErrors());
+        report.server("injected throttles", server.getInjectedThrottles());
+        report.server("requests", server.getRequestCounts());
+        report.finish();
+        return report;
+    }
+
+    private int random(int bound) {
+        synchronized (random) {
+            return random.nextInt(bound);
+        }
+    }
+
+    private AdminEvent event(ResourceType resourceType, OperationType operationType, String path) {
+        var event = new AdminEvent();
+        event.setTime(System.currentTimeMillis());
+        event.setRealmId(InMemoryKeycloak.REALM_ID);
+        event.setResourceType(resourceType);
+        event.setOperationType(operationType);
+        event.setResourcePath(path);
+        return event;
+    }
+
+    private interface EventSource {
+        AdminEvent next(int index);
+    }
+
+    /**
+     * Feeds {@code count} events to the listener from {@code clients} threads,
+     * one session per event like Keycloak does for admin requests. The latency
+     * of an event includes its commit, and thus the delivery in sync mode.
+     */
+    private void runEvents(String name, int count, EventSource source) throws Exception {
+        var latencies = new LatencyRecorder();
+        var failures = new AtomicLong();
+        var next = new AtomicInteger();
+        var pool = Executors.newFixedThreadPool(options.clients);
+        var submitted = executor == null ? 0 : executor.getSubmitted();
+        report.startPhase();
+        var start = System.nanoTime();
+        try {
+            var workers = new ArrayList<Future<?>>();
+            for (int c = 0; c < options.clients; c++) {
+                workers.add(pool.submit(() -> {
+                    for (int i = next.getAndIncrement(); i < count; i = next.getAndIncrement()) {
+                        var event = source.next(i);
+                        var eventStart = System.nanoTime();
+                        try {
+                            KeycloakModelUtils.runJobInTransaction(keycloak.getSessionFactory(), session -> {
+                                session.getContext().setRealm(keycloak.getRealm());
+                                new ScimEventListenerProvider(session, registry, mode, executor, 0)
+                                        .onEvent(event, false);
+                            });
+                        } catch (RuntimeException e) {
+                            failures.incrementAndGet();
+                        }
+                        latencies.record(System.nanoTime() - eventStart);
+                    }
+                }));
+            }
+            for (var worker : workers) {
+                worker.get();
+            }
+            var details = new LinkedHashMap<String, Object>();
+            details.put("failed events", failures.get());
+            if (executor != null) {
+                awaitExecutor();
+                details.put("async operations", executor.getSubmitted() - submitted);
+                details.put("async average latency (ms)", "%.2f".formatted(executor.getAverageLatencyMillis()));
+                details.put("async max latency (ms)", "%.2f".formatted(executor.getMaxLatencyMillis()));
+            }
+            report.endPhase(name, latencies, (System.nanoTime() - start) / 1_000_000, details);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void awaitExecutor() throws InterruptedException {
+        while (executor.getCompleted() + executor.getFailed() + executor.getRejected() < executor.getSubmitted()
+                || executor.getActiveCount() > 0) {
+            Thread.sleep(10);
+        }
+    }
+
+    private void runSync(String name) {
+        var latencies = new LatencyRecorder();
+        report.startPhase();
+        var start = System.nanoTime();
+        var result = new ScimStorageProviderFactory().sync(keycloak.getSessionFactory(), InMemoryKeycloak.REALM_ID,
+                new UserStorageProviderModel(component));
+        var elapsed = System.nanoTime() - start;
+        latencies.record(elapsed);
+        var details = new LinkedHashMap<String, Object>();
+        details.put("added", result.getAdded());
+        details.put("updated", result.getUpdated());
+        details.put("removed", result.getRemoved());
+        details.put("failed", result.getFailed());
+        details.put("local users", keycloak.getUserCount());
+        report.endPhase(name, latencies, elapsed / 1_000_000, details);
+    }
+
+    public void close() {
+        if (executor != null) {
+            executor.close();
+        }
+        registry.close();
+        keycloak.close();
+        server.close();
+    }
+
+    private static void configureLogging(boolean verbose) {
+        var level = verbose ? Level.INFO : Level.WARNING;
+        var root = java.util.logging.Logger.getLogger("");
+        root.setLevel(level);
+        for (var handler : root.getHandlers()) {
+            handler.setLevel(level);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        // The extension logs every resource at INFO, route it to JUL to filter it.
+        System.setProperty("org.jboss.logging.provider", "jdk");
+        var options = Options.parse(args);
+        configureLogging(options.verbose);
+        var driver = new LoadDriver(options);
+        LoadReport report;
+        try {
+            report = driver.run();
+        } finally {
+            driver.close();
+        }
+        System.out.print(report);
+        if (options.report != null) {
+            Files.writeString(Path.of(options.report),
+                    new ObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsString(report.toMap()));
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,113 @@
+package sh.libre.scim.load;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Results of a load run: throughput and latency percentiles per phase, peak
+ * heap usage while the phase ran, and what the mock service provider saw.
+ */
+public class LoadReport {
+    private static final long MB = 1024 * 1024;
+
+    public record Phase(String name, LatencyRecorder.Summary latency, long elapsedMillis, long peakHeapMb,
+            Map<String, Object> details) {
+        public double throughput() {
+            return elapsedMillis == 0 ? 0 : latency.count() * 1000d / elapsedMillis;
+        }
+    }
+
+    final private List<Phase> phases = new ArrayList<>();
+    final private Map<String, Object> server = new LinkedHashMap<>();
+    final private AtomicLong peakHeap = new AtomicLong();
+    final private ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+        var thread = new Thread(r, "heap-sampler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private long retainedHeapMb;
+
+    public LoadReport() {
+        var memory = ManagementFactory.getMemoryMXBean();
+        sampler.scheduleAtFixedRate(
+                () -> peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max),
+                0, 20, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts measuring the peak heap usage of a new phase.
+     */
+    public void startPhase() {
+        peakHeap.set(ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+    }
+
+    public Phase endPhase(String name, LatencyRecorder latencies, long elapsedMillis, Map<String, Object> details) {
+        var phase = new Phase(name, latencies.summarize(), elapsedMillis, peakHeap.get() / MB, details);
+        phases.add(phase);
+        return phase;
+    }
+
+    public void server(String key, Object value) {
+        server.put(key, value);
+    }
+
+    /**
+     * Records the heap still used once the run is over and a GC ran, then stops
+     * sampling.
+     */
+    public void finish() {
+        sampler.shutdownNow();
+        System.gc();
+        retainedHeapMb = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / MB;
+    }
+
+    public List<Phase> getPhases() {
+        return phases;
+    }
+
+    @Override
+    public String toString() {
+        var out = new StringBuilder();
+        out.append("%-16s %8s %10s %10s %9s %9s %9s %9s %9s%n".formatted("phase", "count", "time(ms)", "ops/s",
+                "p50(ms)", "p90(ms)", "p99(ms)", "max(ms)", "heap(MB)"));
+        for (var phase : phases) {
+            var latency = phase.latency();
+            out.append("%-16s %8d %10d %10.1f %9.2f %9.2f %9.2f %9.2f %9d%n".formatted(phase.name(),
+                    latency.count(), phase.elapsedMillis(), phase.throughput(), latency.p50(), latency.p90(),
+                    latency.p99(), latency.max(), phase.peakHeapMb()));
+            phase.details().forEach((k, v) -> out.append("    %s: %s%n".formatted(k, v)));
+        }
+        out.append("mock server%n".formatted());
+        server.forEach((k, v) -> out.append("    %s: %s%n".formatted(k, v)));
+        out.append("heap retained after run: %d MB%n".formatted(retainedHeapMb));
+        return out.toString();
+    }
+
+    public Map<String, Object> toMap() {
+        var map = new LinkedHashMap<String, Object>();
+        map.put("phases", phases.stream().map(p -> {
+            var phase = new LinkedHashMap<String, Object>();
+            phase.put("name", p.name());
+            phase.put("count", p.latency().count());
+            phase.put("elapsedMillis", p.elapsedMillis());
+            phase.put("throughput", p.throughput());
+            phase.put("p50Millis", p.latency().p50());
+            phase.put("p90Millis", p.latency().p90());
+            phase.put("p99Millis", p.latency().p99());
+            phase.put("maxMillis", p.latency().max());
+            phase.put("peakHeapMb", p.peakHeapMb());
+            phase.putAll(p.details());
+            return phase;
+        }).toList());
+        map.put("server", server);
+        map.put("retainedHeapMb", retainedHeapMb);
+        return map;
+    }
+}
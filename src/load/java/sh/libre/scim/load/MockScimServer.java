@@ -0,0 +1,407 @@
+package sh.libre.scim.load;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process SCIM 2.0 service provider for load runs. It keeps Users and
+ * Groups in memory, supports paging, PATCH and /Bulk, and can add latency,
+ * 500 errors and 429 responses to a fraction of the requests. Only what the
+ * extension sends is implemented: no filtering, sorting or schema checks.
+ */
+public class MockScimServer implements AutoCloseable {
+    public static final String BASE_PATH = "/scim/v2";
+    private static final String CONTENT_TYPE = "application/scim+json";
+    private static final String ERROR_SCHEMA = "urn:ietf:params:scim:api:messages:2.0:Error";
+    private static final String LIST_SCHEMA = "urn:ietf:params:scim:api:messages:2.0:ListResponse";
+    private static final String BULK_RESPONSE_SCHEMA = "urn:ietf:params:scim:api:messages:2.0:BulkResponse";
+    private static final Pattern MEMBER_FILTER = Pattern.compile("members\\[value eq \"([^\"]+)\"\\]");
+
+    public static class Options {
+        public long latencyMillis = 0;
+        public long latencyJitterMillis = 0;
+        public double errorRate = 0;
+        public double throttleRate = 0;
+        public int retryAfterSeconds = 0;
+        public int maxPageSize = 1000;
+        public boolean bulk = true;
+        public int bulkMaxOperations = 100;
+        public long bulkMaxPayloadSize = 1_048_576;
+        public int threads = 32;
+    }
+
+    private record Response(int status, JsonNode body, String location) {
+    }
+
+    final private ObjectMapper mapper = new ObjectMapper();
+    final private Options options;
+    final private HttpServer server;
+    final private ExecutorService executor;
+    final private Map<String, NavigableMap<String, ObjectNode>> resources = Map.of(
+            "Users", new ConcurrentSkipListMap<>(),
+            "Groups", new ConcurrentSkipListMap<>());
+    final private Map<String, LongAdder> requestCounts = new ConcurrentHashMap<>();
+    final private LongAdder injectedErrors = new LongAdder();
+    final private LongAdder injectedThrottles = new LongAdder();
+    final private LatencyRecorder latencies = new LatencyRecorder();
+
+    public MockScimServer(Options options) throws IOException {
+        this.options = options;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        var threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(options.threads, r -> {
+            var thread = new Thread(r, "mock-scim-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext(BASE_PATH, this::handle);
+        server.start();
+    }
+
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + BASE_PATH;
+    }
+
+    /**
+     * Adds {@code count} users that only exist on the service provider, for
+     * imports to reconcile.
+     */
+    public void seedUsers(int count) {
+        for (int i = 0; i < count; i++) {
+            var user = mapper.createObjectNode();
+            user.putArray("schemas").add("urn:ietf:params:scim:schemas:core:2.0:User");
+            user.put("userName", "remote-" + i);
+            user.put("displayName", "Remote " + i);
+            user.put("active", true);
+            user.putArray("emails").addObject().put("value", "remote-" + i + "@example.org");
+            store("Users", user);
+        }
+    }
+
+    public int getResourceCount(String endpoint) {
+        return resources.get(endpoint).size();
+    }
+
+    public LatencyRecorder getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * Request counts keyed by {@code METHOD endpoint status}.
+     */
+    public Map<String, Long> getRequestCounts() {
+        var counts = new TreeMap<String, Long>();
+        requestCounts.forEach((k, v) -> counts.put(k, v.sum()));
+        return counts;
+    }
+
+    public long getInjectedErrors() {
+        return injectedErrors.sum();
+    }
+
+    public long getInjectedThrottles() {
+        return injectedThrottles.sum();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        var start = System.nanoTime();
+        var method = exchange.getRequestMethod();
+        var path = exchange.getRequestURI().getPath().substring(BASE_PATH.length());
+        var segments = path.replaceAll("^/+", "").split("/");
+        Response response;
+        try {
+            var body = exchange.getRequestBody().readAllBytes();
+            pause();
+            var random = ThreadLocalRandom.current().nextDouble();
+            if (random < options.throttleRate) {
+                injectedThrottles.increment();
+                if (options.retryAfterSeconds > 0) {
+                    exchange.getResponseHeaders().set("Retry-After", Integer.toString(options.retryAfterSeconds));
+                }
+                response = error(429, "Too many requests");
+            } else if (random < options.throttleRate + options.errorRate) {
+                injectedErrors.increment();
+                response = error(500, "Injected failure");
+            } else {
+                var query = parseQuery(exchange.getRequestURI().getRawQuery());
+                response = route(method, segments, query, body.length == 0 ? null : mapper.readTree(body));
+            }
+        } catch (RuntimeException e) {
+            response = error(500, e.toString());
+        }
+        try {
+            if (response.location() != null) {
+                exchange.getResponseHeaders().set("Location", response.location());
+            }
+            if (response.body() == null) {
+                exchange.sendResponseHeaders(response.status(), -1);
+            } else {
+                var bytes = mapper.writeValueAsBytes(response.body());
+                exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                exchange.sendResponseHeaders(response.status(), bytes.length);
+                exchange.getResponseBody().write(bytes);
+            }
+        } finally {
+            exchange.close();
+            latencies.record(System.nanoTime() - start);
+            requestCounts.computeIfAbsent(method + " " + segments[0] + " " + response.status(),
+                    k -> new LongAdder()).increment();
+        }
+    }
+
+    private void pause() {
+        var latency = options.latencyMillis;
+        if (options.latencyJitterMillis > 0) {
+            latency += ThreadLocalRandom.current().nextLong(options.latencyJitterMillis + 1);
+        }
+        if (latency <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(latency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Response route(String method, String[] segments, Map<String, String> query, JsonNode body) {
+        var endpoint = segments[0];
+        var id = segments.length > 1 ? segments[1] : null;
+        if ("ServiceProviderConfig".equals(endpoint) && "GET".equals(method)) {
+            return new Response(200, serviceProviderConfig(), null);
+        }
+        if ("Bulk".equals(endpoint) && "POST".equals(method)) {
+            return options.bulk ? bulk(body) : error(501, "Bulk is not supported");
+        }
+        if (!resources.containsKey(endpoint)) {
+            return error(404, "Unknown endpoint " + endpoint);
+        }
+        switch (method) {
+            case "GET":
+                return id == null ? list(endpoint, query) : get(endpoint, id);
+            case "POST":
+                return create(endpoint, (ObjectNode) body);
+            case "PUT":
+                return replace(endpoint, id, (ObjectNode) body);
+            case "PATCH":
+                return patch(endpoint, id, body);
+            case "DELETE":
+                return delete(endpoint, id);
+            default:
+                return error(405, "Unsupported method " + method);
+        }
+    }
+
+    private Response list(String endpoint, Map<String, String> query) {
+        var startIndex = Math.max(1, Long.parseLong(query.getOrDefault("startIndex", "1")));
+        var count = Math.min(options.maxPageSize,
+                Integer.parseInt(query.getOrDefault("count", Integer.toString(options.maxPageSize))));
+        var all = resources.get(endpoint);
+        var page = mapper.createObjectNode();
+        page.putArray("schemas").add(LIST_SCHEMA);
+        page.put("totalResults", all.size());
+        page.put("startIndex", startIndex);
+        var listed = page.putArray("Resources");
+        all.values().stream().skip(startIndex - 1).limit(count).forEach(listed::add);
+        page.put("itemsPerPage", listed.size());
+        return new Response(200, page, null);
+    }
+
+    private Response get(String endpoint, String id) {
+        var resource = resources.get(endpoint).get(id);
+        return resource == null ? notFound(endpoint, id) : new Response(200, resource, null);
+    }
+
+    private Response create(String endpoint, ObjectNode resource) {
+        var stored = store(endpoint, resource);
+        return new Response(201, stored, stored.get("meta").get("location").asText());
+    }
+
+    private ObjectNode store(String endpoint, ObjectNode resource) {
+        var id = UUID.randomUUID().toString();
+        resource.put("id", id);
+        var meta = resource.putObject("meta");
+        meta.put("resourceType", endpoint.substring(0, endpoint.length() - 1));
+        meta.put("created", Instant.now().toString());
+        meta.put("location", getBaseUrl() + "/" + endpoint + "/" + id);
+        resources.get(endpoint).put(id, resource);
+        return resource;
+    }
+
+    private Response replace(String endpoint, String id, ObjectNode resource) {
+        var existing = resources.get(endpoint).get(id);
+        if (existing == null) {
+            return notFound(endpoint, id);
+        }
+        resource.put("id", id);
+        resource.set("meta", existing.get("meta"));
+        resources.get(endpoint).put(id, resource);
+        return new Response(200, resource, null);
+    }
+
+    private Response patch(String endpoint, String id, JsonNode request) {
+        var existing = resources.get(endpoint).get(id);
+        if (existing == null) {
+            return notFound(endpoint, id);
+        }
+        synchronized (existing) {
+            for (var operation : request.path("Operations")) {
+                applyPatch(existing, operation);
+            }
+        }
+        return new Response(200, existing, null);
+    }
+
+    private void applyPatch(ObjectNode resource, JsonNode operation) {
+        var op = operation.path("op").asText().toLowerCase();
+        var path = operation.path("path").asText(null);
+        var value = operation.get("value");
+        if (path == null) {
+            if (value instanceof ObjectNode attributes) {
+                resource.setAll(attributes);
+            }
+            return;
+        }
+        var filter = MEMBER_FILTER.matcher(path);
+        if (filter.matches()) {
+            var members = resource.withArray("members");
+            for (int i = members.size() - 1; i >= 0; i--) {
+                if (filter.group(1).equals(members.get(i).path("value").asText())) {
+                    members.remove(i);
+                }
+            }
+            return;
+        }
+        switch (op) {
+            case "remove":
+                resource.remove(path);
+                break;
+            case "add":
+                if (value instanceof ArrayNode values && resource.get(path) instanceof ArrayNode current) {
+                    current.addAll(values);
+                } else {
+                    resource.set(path, value);
+                }
+                break;
+            default:
+                resource.set(path, value);
+                break;
+        }
+    }
+
+    private Response delete(String endpoint, String id) {
+        return resources.get(endpoint).remove(id) == null ? notFound(endpoint, id) : new Response(204, null, null);
+    }
+
+    private Response bulk(JsonNode request) {
+        var operations = request.path("Operations");
+        if (operations.size() > options.bulkMaxOperations) {
+            return error(413, "Too many operations");
+        }
+        var result = mapper.createObjectNode();
+        result.putArray("schemas").add(BULK_RESPONSE_SCHEMA);
+        var results = result.putArray("Operations");
+        for (var operation : operations) {
+            var method = operation.path("method").asText();
+            var segments = operation.path("path").asText().replaceAll("^/+", "").split("/");
+            Response response;
+            try {
+                response = route(method, segments, Map.of(), operation.get("data"));
+            } catch (RuntimeException e) {
+                response = error(500, e.toString());
+            }
+            var entry = results.addObject();
+            entry.put("method", method);
+            if (operation.hasNonNull("bulkId")) {
+                entry.put("bulkId", operation.get("bulkId").asText());
+            }
+            var location = response.location();
+            if (location == null && segments.length > 1) {
+                location = getBaseUrl() + "/" + segments[0] + "/" + segments[1];
+            }
+            if (location != null) {
+                entry.put("location", location);
+            }
+            entry.put("status", response.status());
+            if (response.status() >= 400) {
+                entry.set("response", response.body());
+            }
+        }
+        return new Response(200, result, null);
+    }
+
+    private ObjectNode serviceProviderConfig() {
+        var config = mapper.createObjectNode();
+        config.putArray("schemas").add("urn:ietf:params:scim:schemas:core:2.0:ServiceProviderConfig");
+        config.putObject("patch").put("supported", true);
+        var bulk = config.putObject("bulk");
+        bulk.put("supported", options.bulk);
+        bulk.put("maxOperations", options.bulkMaxOperations);
+        bulk.put("maxPayloadSize", options.bulkMaxPayloadSize);
+        var filter = config.putObject("filter");
+        filter.put("supported", false);
+        filter.put("maxResults", options.maxPageSize);
+        config.putObject("changePassword").put("supported", false);
+        config.putObject("sort").put("supported", false);
+        config.putObject("etag").put("supported", false);
+        config.putArray("authenticationSchemes");
+        return config;
+    }
+
+    private Response notFound(String endpoint, String id) {
+        return error(404, "%s %s not found".formatted(endpoint, id));
+    }
+
+    private Response error(int status, String detail) {
+        var error = mapper.createObjectNode();
+        error.putArray("schemas").add(ERROR_SCHEMA);
+        error.put("status", status);
+        error.put("detail", detail);
+        return new Response(status, error, null);
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        var parameters = new HashMap<String, String>();
+        if (query == null) {
+            return parameters;
+        }
+        for (var parameter : query.split("&")) {
+            var separator = parameter.indexOf('=');
+            if (separator > 0) {
+                parameters.put(URLDecoder.decode(parameter.substring(0, separator), StandardCharsets.UTF_8),
+                        URLDecoder.decode(parameter.substring(separator + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return parameters;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -1,5 +1,14 @@
 package sh.libre.scim.core;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
 import java.util.stream.Stream;
 
 import jakarta.persistence.EntityManager;
@@ -13,11 +22,16 @@ import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.RoleMapperModel;
 import sh.libre.scim.jpa.ScimResource;
+import sh.libre.scim.jpa.ScimResourceId;
 import de.captaingoldfish.scim.sdk.client.ScimRequestBuilder;
 import de.captaingoldfish.scim.sdk.client.builder.PatchBuilder;
 import de.captaingoldfish.scim.sdk.common.resources.ResourceNode;
 
 public abstract class Adapter<M extends RoleMapperModel, S extends ResourceNode> {
+    // Keeps IN lists below the parameter limits of the supported databases.
+    protected static final int QUERY_CHUNK_SIZE = 500;
+    // Session attribute collecting the managed mappings while an import tracks them.
+    private static final String TRACKED_MAPPINGS = Adapter.class.getName() + ".tracked";
 
     protected final Logger LOGGER;
     protected final String realmId;
@@ -26,9 +40,11 @@ public abstract class Adapter<M extends RoleMapperModel, S extends ResourceNode>
     protected final String componentId;
     protected final EntityManager em;
     protected final KeycloakSession session;
+    protected final ScimMappingCache cache;
 
     protected String id;
     protected String externalId;
+    protected String fingerprint;
     protected Boolean skip = false;
 
     public Adapter(KeycloakSession session, String componentId, String type, Logger logger) {
@@ -39,6 +55,7 @@ public abstract class Adapter<M extends RoleMapperModel, S extends ResourceNode>
         this.em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
         this.type = type;
         this.LOGGER = logger;
+        this.cache = ScimMappingCache.getInstance();
     }
 
     public String getType() {
@@ -76,9 +93,36 @@ public abstract class Adapter<M extends RoleMapperModel, S extends ResourceNode>
         entity.setExternalId(externalId);
         entity.setComponentId(componentId);
         entity.setRealmId(realmId);
+        entity.setFingerprint(fingerprint);
         return entity;
     }
 
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public void setFingerprint(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Hash of the SCIM representation of a resource, used to skip replacing
+     * resources that did not change. The service provider id and meta are left
+     * out so the hash is the same before and after creation.
+     */
+    public static String fingerprint(ResourceNode resource) {
+        var canonical = resource.deepCopy();
+        canonical.remove("id");
+        canonical.remove("meta");
+        try {
+            var digest = MessageDigest.getInstance("SHA-256")
+                    .digest(canonical.toString().getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     public TypedQuery<ScimResource> query(String query, String id) {
         return query(query, id, type);
     }
@@ -92,13 +136,129 @@ public abstract class Adapter<M extends RoleMapperModel, S extends ResourceNode>
                 .setParameter("id", id);
     }
 
+    /**
+     * Runs a named query taking an {@code ids} list parameter, in chunks of
+     * {@link #QUERY_CHUNK_SIZE}.
+     */
+    public List<ScimResource> queryIn(String query, Collection<String> ids, String type) {
+        var results = new ArrayList<ScimResource>();
+        var chunk = new ArrayList<String>(Math.min(ids.size(), QUERY_CHUNK_SIZE));
+        for (var id : ids) {
+            chunk.add(id);
+            if (chunk.size() == QUERY_CHUNK_SIZE) {
+                results.addAll(queryChunk(query, chunk, type));
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            results.addAll(queryChunk(query, chunk, type));
+        }
+        return results;
+    }
+
+    private List<ScimResource> queryChunk(String query, List<String> ids, String type) {
+        var event = ScimEvents.MappingQueryEvent.begin(componentId, type, query, ids.size());
+        List<ScimResource> results = List.of();
+        try {
+            results = this.em
+                    .createNamedQuery(query, ScimResource.class)
+                    .setParameter("type", type)
+                    .setParameter("realmId", realmId)
+                    .setParameter("componentId", componentId)
+                    .setParameter("ids", ids)
+                    .getResultList();
+            results.forEach(this::track);
+            return results;
+        } finally {
+            event.end(results.size());
+        }
+    }
+
+    private ScimResource querySingle(String query, String id) {
+        var event = ScimEvents.MappingQueryEvent.begin(componentId, type, query, 1);
+        var found = false;
+        try {
+            var mapping = this.query(query, id).getSingleResult();
+            found = true;
+            return track(mapping);
+        } finally {
+            event.end(found ? 1 : 0);
+        }
+    }
+
+    /**
+     * Returns the mappings of the given Keycloak ids, keyed by Keycloak id.
+     * Cached mappings are served from {@link ScimMappingCache}, only the
+     * missing ones are queried.
+     */
+    public Map<String, ScimResource> getMappingsById(Collection<String> ids, String type) {
+        var mappings = new HashMap<String, ScimResource>();
+        var missing = new ArrayList<String>();
+        for (var id : ids) {
+            var cached = cache.getById(session, realmId, componentId, type, id);
+            if (cached != null) {
+                mappings.put(id, cached);
+            } else {
+                missing.add(id);
+            }
+        }
+        if (!missing.isEmpty()) {
+            queryIn("findByIds", missing, type).forEach(m -> {
+                cache.put(session, m);
+                mappings.put(m.getId(), m);
+            });
+        }
+        return mappings;
+    }
+
+    /**
+     * Returns the mappings of the given SCIM ids, keyed by SCIM id.
+     */
+    public Map<String, ScimResource> getMappingsByExternalId(Collection<String> externalIds, String type) {
+        var mappings = new HashMap<String, ScimResource>();
+        var missing = new ArrayList<String>();
+        for (var externalId : externalIds) {
+            var cached = cache.getByExternalId(session, realmId, componentId, type, externalId);
+            if (cached != null) {
+                mappings.put(externalId, cached);
+            } else {
+                missing.add(externalId);
+            }
+        }
+        if (!missing.isEmpty()) {
+            queryIn("findByExternalIds", missing, type).forEach(m -> {
+                cache.put(session, m);
+                mappings.put(m.getExternalId(), m);
+            });
+        }
+        return mappings;
+    }
+
+    /**
+     * Returns the mapping of this resource, by Keycloak id or else by SCIM id.
+     * The result may come from the cache and is detached: change it through
+     * {@link #saveMapping()}, {@link #deleteMapping()} or
+     * {@link #updateFingerprint(String)}.
+     */
     public ScimResource getMapping() {
         try {
             if (this.id != null) {
-                return this.query("findById", id).getSingleResult();
+                var cached = cache.getById(session, realmId, componentId, type, id);
+                if (cached != null) {
+                    return cached;
+                }
+                var mapping = querySingle("findById", id);
+                cache.put(session, mapping);
+                return mapping;
             }
             if (this.externalId != null) {
-                return this.query("findByExternalId", externalId).getSingleResult();
+                var cached = cache.getByExternalId(session, realmId, componentId, type, externalId);
+                if (cached != null) {
+                    return cached;
+                }
+                var mapping = querySingle("findByExternalId", externalId);
+                cache.put(session, mapping);
+                return mapping;
             }
         } catch (NotFoundException e) {
         } catch (NoResultException e) {
@@ -110,12 +270,74 @@ public abstract class Adapter<M extends RoleMapperModel, S extends ResourceNode>
     }
 
     public void saveMapping() {
-        this.em.persist(toMapping());
+        this.em.persist(track(toMapping()));
+        cache.inserted(session, realmId, componentId, type, id, externalId);
     }
 
     public void deleteMapping() {
         var mapping = this.em.merge(toMapping());
         this.em.remove(mapping);
+        invalidateMapping();
+    }
+
+    /**
+     * Stores the fingerprint of the last representation sent for this
+     * resource, null when it is unknown.
+     */
+    public void updateFingerprint(String fingerprint) {
+        setFingerprint(fingerprint);
+        var event = ScimEvents.MappingQueryEvent.begin(componentId, type, "find", 1);
+        var mapping = this.em.find(ScimResource.class,
+                new ScimResourceId(id, realmId, componentId, type));
+        event.end(mapping == null ? 0 : 1);
+        if (mapping != null) {
+            track(mapping).setFingerprint(fingerprint);
+        }
+        invalidateMapping();
+    }
+
+    /**
+     * Starts collecting the mappings this session loads or persists, so a long
+     * import can detach them with {@link #detachTrackedMappings} without
+     * clearing the entities of the rest of the session.
+     */
+    public static void trackMappings(KeycloakSession session) {
+        session.setAttribute(TRACKED_MAPPINGS, new ArrayList<ScimResource>());
+    }
+
+    /**
+     * Flushes then detaches the mappings collected since the last call.
+     */
+    @SuppressWarnings("unchecked")
+    public static void detachTrackedMappings(KeycloakSession session, EntityManager em) {
+        List<ScimResource> tracked = session.getAttribute(TRACKED_MAPPINGS, List.class);
+        em.flush();
+        if (tracked == null) {
+            return;
+        }
+        for (var mapping : tracked) {
+            if (em.contains(mapping)) {
+                em.detach(mapping);
+            }
+        }
+        tracked.clear();
+    }
+
+    public static void untrackMappings(KeycloakSession session) {
+        session.removeAttribute(TRACKED_MAPPINGS);
+    }
+
+    @SuppressWarnings("unchecked")
+    private ScimResource track(ScimResource mapping) {
+        List<ScimResource> tracked = session.getAttribute(TRACKED_MAPPINGS, List.class);
+        if (tracked != null) {
+            tracked.add(mapping);
+        }
+        return mapping;
+    }
+
+    protected void invalidateMapping() {
+        cache.invalidate(session, realmId, componentId, type, id, externalId);
     }
 
     public void apply(ScimResource mapping) {
@@ -133,6 +355,8 @@ public abstract class Adapter<M extends RoleMapperModel, S extends ResourceNode>
 
     public abstract PatchBuilder<S> toPatchBuilder(ScimRequestBuilder scimRequestBuilder, String url);
 
+    public abstract M getEntity(String id);
+
     public abstract Boolean entityExists();
 
     public abstract Boolean tryToMap();
@@ -141,5 +365,11 @@ public abstract class Adapter<M extends RoleMapperModel, S extends ResourceNode>
 
     public abstract Stream<M> getResourceStream();
 
+    public Stream<String> getResourceIdStream() {
+        return getResourceStream().map(this::getEntityId);
+    }
+
+    protected abstract String getEntityId(M model);
+
     public abstract Boolean skipRefresh();
 }
@@ -2,13 +2,20 @@ package sh.libre.scim.core;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
-import jakarta.persistence.NoResultException;
 
 import de.captaingoldfish.scim.sdk.client.ScimRequestBuilder;
 import de.captaingoldfish.scim.sdk.client.builder.PatchBuilder;
@@ -24,7 +31,11 @@ import org.keycloak.models.KeycloakSession;
 public class GroupAdapter extends Adapter<GroupModel, Group> {
 
     private String displayName;
-    private Set<String> members = new HashSet<String>();
+    // Sorted so the SCIM representation, and thus the fingerprint, is stable.
+    private Set<String> members = new TreeSet<String>();
+    // When set, members are paged from the group instead of being collected.
+    private boolean streamMembers = false;
+    private GroupModel group;
 
     public GroupAdapter(KeycloakSession session, String componentId) {
         super(session, componentId, "Group", Logger.getLogger(GroupAdapter.class));
@@ -40,6 +51,10 @@ public class GroupAdapter extends Adapter<GroupModel, Group> {
         }
     }
 
+    public void setStreamMembers(boolean streamMembers) {
+        this.streamMembers = streamMembers;
+    }
+
     @Override
     public Class<Group> getResourceClass() {
         return Group.class;
@@ -47,94 +62,117 @@ public class GroupAdapter extends Adapter<GroupModel, Group> {
 
     @Override
     public void apply(GroupModel group) {
-        setId(group.getId());
-        setDisplayName(group.getName());
-        this.members = session.users()
-                .getGroupMembersStream(session.getContext().getRealm(), group)
-                .map(x -> x.getId())
-                .collect(Collectors.toSet());
-        LOGGER.info(String.format("Collected %d members for group %s (id=%s)",
-                this.members.size(), group.getName(), group.getId()));
-        this.skip = StringUtils.equals(group.getFirstAttribute("scim-skip"), "true");
+        var event = ScimEvents.ConversionEvent.begin(componentId, type, ScimEvents.APPLY_MODEL);
+        try {
+            setId(group.getId());
+            setDisplayName(group.getName());
+            this.group = group;
+            if (!streamMembers) {
+                this.members = session.users()
+                        .getGroupMembersStream(session.getContext().getRealm(), group)
+                        .map(x -> x.getId())
+                        .collect(Collectors.toCollection(TreeSet::new));
+                LOGGER.info(String.format("Collected %d members for group %s (id=%s)",
+                        this.members.size(), group.getName(), group.getId()));
+            }
+            this.skip = StringUtils.equals(group.getFirstAttribute("scim-skip"), "true");
+        } finally {
+            event.end(id);
+        }
     }
 
     @Override
     public void apply(Group group) {
-        setExternalId(group.getId().get());
-        setDisplayName(group.getDisplayName().get());
-        var groupMembers = group.getMembers();
-        this.members = new HashSet<String>();
-        if (groupMembers != null && groupMembers.size() > 0) {
-            LOGGER.info(String.format("Processing %d incoming members for group %s",
-                    groupMembers.size(), getDisplayName()));
-            for (var groupMember : groupMembers) {
-                try {
-                    String memberValue = groupMember.getValue().get();
-                    LOGGER.info(String.format("Looking up user with externalId: %s", memberValue));
-                    var userMapping = this.query("findByExternalId", memberValue, "User")
-                            .getSingleResult();
-                    LOGGER.info(String.format("Found user mapping: id=%s, externalId=%s",
-                            userMapping.getId(), userMapping.getExternalId()));
+        var event = ScimEvents.ConversionEvent.begin(componentId, type, ScimEvents.APPLY_RESOURCE);
+        try {
+            setExternalId(group.getId().get());
+            setDisplayName(group.getDisplayName().get());
+            var groupMembers = group.getMembers();
+            this.members = new TreeSet<String>();
+            if (groupMembers != null && groupMembers.size() > 0) {
+                LOGGER.info(String.format("Processing %d incoming members for group %s",
+                        groupMembers.size(), getDisplayName()));
+                var memberValues = new ArrayList<String>();
+                for (var groupMember : groupMembers) {
+                    groupMember.getValue().ifPresent(memberValues::add);
+                }
+                var userMappings = getMappingsByExternalId(memberValues, "User");
+                for (var memberValue : memberValues) {
+                    var userMapping = userMappings.get(memberValue);
+                    if (userMapping == null) {
+                        LOGGER.error(String.format("No user mapping found for externalId: %s", memberValue));
+                        continue;
+                    }
                     this.members.add(userMapping.getId());
-                } catch (NoResultException e) {
-                    LOGGER.error(String.format("No user mapping found for externalId: %s",
-                            groupMember.getValue().get()));
-                } catch (Exception e) {
-                    LOGGER.error(String.format("Failed to process incoming group member: %s - Error: %s",
-                            groupMember.getValue().get(), e.getMessage()), e);
                 }
             }
+            LOGGER.info(String.format("Processed incoming SCIM group %s with %d mapped members",
+                    getDisplayName(), this.members.size()));
+        } finally {
+            event.end(externalId);
         }
-        LOGGER.info(String.format("Processed incoming SCIM group %s with %d mapped members",
-                getDisplayName(), this.members.size()));
     }
 
     @Override
     public Group toSCIM(Boolean addMeta) {
-        var group = new Group();
-        group.setId(externalId);
-        group.setExternalId(id);
-        group.setDisplayName(displayName);
+        var event = ScimEvents.ConversionEvent.begin(componentId, type, ScimEvents.TO_SCIM);
+        try {
+            var group = new Group();
+            group.setId(externalId);
+            group.setExternalId(id);
+            group.setDisplayName(displayName);
 
-        List<Member> groupMembers = new ArrayList<>();
-        LOGGER.info(String.format("Processing %d members for SCIM group %s", members.size(), displayName));
+            List<Member> groupMembers = new ArrayList<>();
+            LOGGER.info(String.format("Processing %d members for SCIM group %s", members.size(), displayName));
 
-        for (String memberId : members) {
-            try {
-                // Try to ensure the user has a mapping
-                String externalId = ensureUserMapping(memberId);
+            var externalIds = ensureUserMappings(members);
+            for (String memberId : members) {
+                try {
+                    String externalId = externalIds.get(memberId);
 
-                if (externalId == null) {
-                    LOGGER.error(String.format("Could not get or create mapping for user %s, skipping", memberId));
-                    continue;
-                }
+                    if (externalId == null) {
+                        LOGGER.error(String.format("Could not get or create mapping for user %s, skipping", memberId));
+                        continue;
+                    }
 
-                LOGGER.info(String.format("Adding member with externalId %s to group %s", externalId, displayName));
-                var groupMember = new Member();
-                groupMember.setValue(externalId);
-                groupMember.setType("User");
-                var ref = new URI(String.format("Users/%s", externalId));
-                groupMember.setRef(ref.toString());
-                groupMembers.add(groupMember);
-            } catch (Exception e) {
-                LOGGER.error("Failed to process group member: " + memberId, e);
+                    var groupMember = new Member();
+                    groupMember.setValue(externalId);
+                    groupMember.setType("User");
+                    var ref = new URI(String.format("Users/%s", externalId));
+                    groupMember.setRef(ref.toString());
+                    groupMembers.add(groupMember);
+                } catch (Exception e) {
+                    LOGGER.error("Failed to process group member: " + memberId, e);
+                }
             }
-        }
 
-        group.setMembers(groupMembers);
-        LOGGER.info(String.format("Final SCIM group %s has %d members", displayName, groupMembers.size()));
+            group.setMembers(groupMembers);
+            LOGGER.info(String.format("Final SCIM group %s has %d members", displayName, groupMembers.size()));
 
-        if (addMeta) {
-            var meta = new Meta();
-            try {
-                var uri = new URI("Groups/" + externalId);
-                meta.setLocation(uri.toString());
-            } catch (URISyntaxException e) {
-                LOGGER.error("Failed to create meta URI", e);
+            if (addMeta) {
+                var meta = new Meta();
+                try {
+                    var uri = new URI("Groups/" + externalId);
+                    meta.setLocation(uri.toString());
+                } catch (URISyntaxException e) {
+                    LOGGER.error("Failed to create meta URI", e);
+                }
+                group.setMeta(meta);
             }
-            group.setMeta(meta);
+            return group;
+        } finally {
+            event.end(id);
         }
-        return group;
+    }
+
+    @Override
+    public GroupModel getEntity(String id) {
+        return session.groups().getGroupById(realm, id);
+    }
+
+    @Override
+    protected String getEntityId(GroupModel model) {
+        return model.getId();
     }
 
     @Override
@@ -193,81 +231,253 @@ public class GroupAdapter extends Adapter<GroupModel, Group> {
 
     @Override
     public PatchBuilder<Group> toPatchBuilder(ScimRequestBuilder scimRequestBuilder, String url) {
-        List<Member> groupMembers = new ArrayList<>();
-        PatchBuilder<Group> patchBuilder;
+        var event = ScimEvents.ConversionEvent.begin(componentId, type, ScimEvents.TO_PATCH_BUILDER);
         try {
-            LOGGER.info(String.format("Creating PATCH request to URL: %s", url));
-            patchBuilder = scimRequestBuilder.patch(url, Group.class);
-
-            if (members.size() > 0) {
-                for (String member : members) {
-                    try {
-                        LOGGER.info(String.format("Looking for member with id: %s", member));
-
-                        // Try to ensure the user has a mapping
-                        String externalId = ensureUserMapping(member);
+            List<Member> groupMembers = new ArrayList<>();
+            PatchBuilder<Group> patchBuilder;
+            try {
+                LOGGER.info(String.format("Creating PATCH request to URL: %s", url));
+                patchBuilder = scimRequestBuilder.patch(url, Group.class);
 
+                if (members.size() > 0) {
+                    var externalIds = ensureUserMappings(members);
+                    for (String member : members) {
+                        String externalId = externalIds.get(member);
                         if (externalId == null) {
-                            LOGGER.error(
-                                    String.format("Could not get or create mapping for user %s, skipping", member));
+                            LOGGER.error(String.format("Could not get or create mapping for user %s, skipping", member));
                             continue;
                         }
-
-                        LOGGER.info(String.format("Using externalId %s for user %s", externalId, member));
-
-                        Member memberNode = Member.builder()
+                        groupMembers.add(Member.builder()
                                 .value(externalId)
                                 .type("User")
-                                .build();
-                        groupMembers.add(memberNode);
-                        LOGGER.info(String.format("Added member %s to PATCH request", externalId));
-                    } catch (Exception e) {
-                        LOGGER.error(String.format("Failed to process member %s: %s - Stack trace: ",
-                                member, e.getMessage()), e);
+                                .build());
                     }
+
+                    // Debug the members being sent
+                    LOGGER.info(String.format("Adding %d members to PATCH request", groupMembers.size()));
+
+                    patchBuilder.addOperation()
+                            .path("members")
+                            .op(PatchOp.REPLACE)
+                            .valueNodes(groupMembers)
+                            .next()
+                            .op(PatchOp.REPLACE)
+                            .path("displayName")
+                            .value(displayName)
+                            .next()
+                            .op(PatchOp.REPLACE)
+                            .path("externalId")
+                            .value(id)
+                            .build();
+                } else {
+                    LOGGER.info("No members to add, using REMOVE operation");
+                    patchBuilder.addOperation()
+                            .path("members")
+                            .op(PatchOp.REMOVE)
+                            .value(null)
+                            .next()
+                            .op(PatchOp.REPLACE)
+                            .path("displayName")
+                            .value(displayName)
+                            .next()
+                            .op(PatchOp.REPLACE)
+                            .path("externalId")
+                            .value(id)
+                            .build();
                 }
 
-                // Debug the members being sent
-                LOGGER.info(String.format("Adding %d members to PATCH request", groupMembers.size()));
-
-                patchBuilder.addOperation()
-                        .path("members")
-                        .op(PatchOp.REPLACE)
-                        .valueNodes(groupMembers)
-                        .next()
-                        .op(PatchOp.REPLACE)
-                        .path("displayName")
-                        .value(displayName)
-                        .next()
-                        .op(PatchOp.REPLACE)
-                        .path("externalId")
-                        .value(id)
-                        .build();
-            } else {
-                LOGGER.info("No members to add, using REMOVE operation");
-                patchBuilder.addOperation()
-                        .path("members")
-                        .op(PatchOp.REMOVE)
-                        .value(null)
-                        .next()
-                        .op(PatchOp.REPLACE)
-                        .path("displayName")
-                        .value(displayName)
-                        .next()
-                        .op(PatchOp.REPLACE)
-                        .path("externalId")
-                        .value(id)
-                        .build();
+                // Log the entire request for debugging
+                LOGGER.info("Final PATCH request payload: " + patchBuilder.getResource());
+                return patchBuilder;
+
+            } catch (Exception e) {
+                LOGGER.error(String.format("Failed to create patch request to %s: %s", url, e.getMessage()), e);
+                throw e;
+            }
+        } finally {
+            event.end(id);
+        }
+    }
+
+    /**
+     * Builds a PATCH only carrying membership changes, so the whole member list
+     * is not sent when a single user joins or leaves the group.
+     *
+     * @param added   External SCIM IDs of the users to add
+     * @param removed External SCIM IDs of the users to remove
+     */
+    public PatchBuilder<Group> toMembershipPatchBuilder(ScimRequestBuilder scimRequestBuilder, String url,
+            Collection<String> added, Collection<String> removed) {
+        var patchBuilder = scimRequestBuilder.patch(url, Group.class);
+        var operation = patchBuilder.addOperation();
+        var first = true;
+        if (!added.isEmpty()) {
+            List<Member> groupMembers = new ArrayList<>();
+            for (String externalId : added) {
+                groupMembers.add(Member.builder().value(externalId).type("User").build());
+            }
+            operation = operation.path("members").op(PatchOp.ADD).valueNodes(groupMembers);
+            first = false;
+        }
+        for (String externalId : removed) {
+            if (!first) {
+                operation = operation.next();
+            }
+            operation = operation.path("members[value eq \"%s\"]".formatted(externalId)).op(PatchOp.REMOVE);
+            first = false;
+        }
+        operation.build();
+        LOGGER.info(String.format("Membership PATCH for group %s: %d added, %d removed", displayName,
+                added.size(), removed.size()));
+        return patchBuilder;
+    }
+
+    /**
+     * Pages the member ids of the group, {@code chunkSize} at a time. The first
+     * chunk is always handed over, even when the group has no members.
+     *
+     * @param consumer Called with each chunk, returns false to stop paging
+     * @return false if the consumer stopped the paging
+     */
+    public boolean forEachMemberChunk(int chunkSize, Predicate<List<String>> consumer) {
+        int first = 0;
+        while (true) {
+            var chunk = session.users()
+                    .getGroupMembersStream(realm, group, first, chunkSize)
+                    .map(x -> x.getId())
+                    .toList();
+            if (chunk.isEmpty() && first > 0) {
+                return true;
+            }
+            if (!consumer.test(chunk)) {
+                return false;
+            }
+            if (chunk.size() < chunkSize) {
+                return true;
             }
+            first += chunkSize;
+        }
+    }
+
+    /**
+     * Fingerprint of the group computed while paging its members, so the member
+     * list is never held in memory. It differs from {@link #fingerprint} and is
+     * only compared with fingerprints computed the same way, e.g. by
+     * {@link #newMemberDigest()} while sending the member chunks.
+     */
+    public String streamingFingerprint(int chunkSize) {
+        var digest = newMemberDigest();
+        forEachMemberChunk(chunkSize, chunk -> {
+            updateMemberDigest(digest, chunk);
+            return true;
+        });
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Digest of the group attributes, to be updated with each chunk of members
+     * through {@link #updateMemberDigest}.
+     */
+    public MessageDigest newMemberDigest() {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            digest.update(("%s\n%s\n".formatted(id, displayName)).getBytes(StandardCharsets.UTF_8));
+            return digest;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 
-            // Log the entire request for debugging
-            LOGGER.info("Final PATCH request payload: " + patchBuilder.getResource());
-            return patchBuilder;
+    public static void updateMemberDigest(MessageDigest digest, List<String> chunk) {
+        chunk.forEach(memberId -> digest.update((memberId + "\n").getBytes(StandardCharsets.UTF_8)));
+    }
 
+    /**
+     * Builds the PATCH for one chunk of members. The first chunk of a replace
+     * resets the member list and the group attributes, the next ones only add
+     * members.
+     *
+     * @param userIds Keycloak IDs of the users in the chunk
+     * @param reset   Whether the chunk replaces the remote member list
+     */
+    public PatchBuilder<Group> toMemberChunkPatchBuilder(ScimRequestBuilder scimRequestBuilder, String url,
+            List<String> userIds, boolean reset) {
+        var externalIds = ensureUserMappings(userIds);
+        List<Member> groupMembers = new ArrayList<>();
+        for (String userId : userIds) {
+            String externalId = externalIds.get(userId);
+            if (externalId == null) {
+                LOGGER.error(String.format("Could not get or create mapping for user %s, skipping", userId));
+                continue;
+            }
+            groupMembers.add(Member.builder().value(externalId).type("User").build());
+        }
+        var patchBuilder = scimRequestBuilder.patch(url, Group.class);
+        var operation = patchBuilder.addOperation().path("members");
+        if (!reset) {
+            operation = operation.op(PatchOp.ADD).valueNodes(groupMembers);
+        } else {
+            if (groupMembers.isEmpty()) {
+                operation = operation.op(PatchOp.REMOVE).value(null);
+            } else {
+                operation = operation.op(PatchOp.REPLACE).valueNodes(groupMembers);
+            }
+            operation = operation.next()
+                    .op(PatchOp.REPLACE)
+                    .path("displayName")
+                    .value(displayName)
+                    .next()
+                    .op(PatchOp.REPLACE)
+                    .path("externalId")
+                    .value(id);
+        }
+        operation.build();
+        LOGGER.info(String.format("Member chunk PATCH for group %s: %d members%s", displayName,
+                groupMembers.size(), reset ? ", replacing the member list" : ""));
+        return patchBuilder;
+    }
+
+    /**
+     * Batched version of {@link #ensureUserMapping(String)}: existing mappings
+     * are read with a few IN queries and the missing ones are persisted in a
+     * single flush.
+     *
+     * @param userIds The Keycloak user IDs
+     * @return The external SCIM IDs keyed by Keycloak user ID; users that could
+     *         not be mapped are absent
+     */
+    Map<String, String> ensureUserMappings(Collection<String> userIds) {
+        var externalIds = new HashMap<String, String>();
+        try {
+            getMappingsById(userIds, "User")
+                    .forEach((userId, mapping) -> externalIds.put(userId, mapping.getExternalId()));
+            var created = 0;
+            for (String userId : userIds) {
+                if (externalIds.containsKey(userId)) {
+                    continue;
+                }
+                var user = session.users().getUserById(realm, userId);
+                if (user == null) {
+                    LOGGER.error(String.format("Cannot create mapping: User %s not found in Keycloak", userId));
+                    continue;
+                }
+                var userAdapter = new UserAdapter(session, this.componentId);
+                userAdapter.setId(userId);
+                String externalId = java.util.UUID.randomUUID().toString();
+                userAdapter.setExternalId(externalId);
+                userAdapter.saveMapping();
+                externalIds.put(userId, externalId);
+                created++;
+            }
+            if (created > 0) {
+                LOGGER.info(String.format("Persisting %d new user mappings for group %s", created, displayName));
+                this.em.flush();
+            }
         } catch (Exception e) {
-            LOGGER.error(String.format("Failed to create patch request to %s: %s", url, e.getMessage()), e);
-            throw e;
+            LOGGER.error(String.format("Error ensuring user mappings for group %s: %s", displayName, e.getMessage()),
+                    e);
         }
+        return externalIds;
     }
 
     /**
@@ -276,17 +486,16 @@ public class GroupAdapter extends Adapter<GroupModel, Group> {
      * @param userId The Keycloak user ID
      * @return The external SCIM ID for the user, or null if mapping failed
      */
-    private String ensureUserMapping(String userId) {
+    String ensureUserMapping(String userId) {
         try {
             // First try to get the existing mapping
             LOGGER.info(String.format("Checking if user %s already has a SCIM mapping", userId));
-            var userMappingQuery = this.query("findById", userId, "User");
-            try {
-                var existingMapping = userMappingQuery.getSingleResult();
+            var existingMapping = getMappingsById(List.of(userId), "User").get(userId);
+            if (existingMapping != null) {
                 LOGGER.info(String.format("Found existing user mapping: id=%s, externalId=%s",
                         existingMapping.getId(), existingMapping.getExternalId()));
                 return existingMapping.getExternalId();
-            } catch (NoResultException e) {
+            } else {
                 // No mapping found, need to create one
                 LOGGER.info(String.format("No SCIM mapping found for user %s, creating one", userId));
 
@@ -0,0 +1,193 @@
+package sh.libre.scim.core;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.logging.Logger;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import io.micrometer.core.instrument.Meter;
+
+/**
+ * Bounded worker lanes running SCIM operations after the Keycloak transaction
+ * that produced them has committed. Each operation runs in its own session.
+ * Operations are spread over single-threaded lanes by component and resource,
+ * so the operations on one resource run one after the other in the order they
+ * were submitted, e.g. a replace never races the create it follows. With a
+ * coalescing window, operations on the same resource are collapsed before
+ * being queued.
+ */
+public class ScimAsyncExecutor {
+    public static final String REJECT_CALLER_RUNS = "CALLER_RUNS";
+    public static final String REJECT_DISCARD = "DISCARD";
+
+    final private Logger LOGGER = Logger.getLogger(ScimAsyncExecutor.class);
+    final private KeycloakSessionFactory sessionFactory;
+    final private ScimClientRegistry registry;
+    final private ThreadPoolExecutor[] lanes;
+    final private String rejectionPolicy;
+    final private ScimCoalescer coalescer;
+    final private List<Meter> meters;
+
+    final private AtomicLong submitted = new AtomicLong();
+    final private AtomicLong completed = new AtomicLong();
+    final private AtomicLong failed = new AtomicLong();
+    final private AtomicLong rejected = new AtomicLong();
+    final private AtomicLong totalLatency = new AtomicLong();
+    final private AtomicLong maxLatency = new AtomicLong();
+
+    public ScimAsyncExecutor(KeycloakSessionFactory sessionFactory, ScimClientRegistry registry, int workers,
+            int queueSize, String rejectionPolicy, long coalesceWindow) {
+        this.sessionFactory = sessionFactory;
+        this.registry = registry;
+        this.rejectionPolicy = rejectionPolicy;
+        this.coalescer = coalesceWindow > 0 ? new ScimCoalescer(coalesceWindow, this::enqueue) : null;
+        var threadCount = new AtomicInteger();
+        this.lanes = new ThreadPoolExecutor[Math.max(1, workers)];
+        var laneQueueSize = Math.max(1, queueSize / lanes.length);
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(laneQueueSize), r -> {
+                        var thread = new Thread(r, "scim-worker-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            lanes[i].prestartCoreThread();
+        }
+        this.meters = ScimMetrics.registerExecutor(this);
+    }
+
+    public void submit(String realmId, ComponentModel model, ScimOperation operation) {
+        if (coalescer != null) {
+            coalescer.submit(realmId, model, operation);
+        } else {
+            enqueue(realmId, model, operation);
+        }
+    }
+
+    /**
+     * Queues the operation on the lane of its resource. When that lane is full,
+     * with {@code CALLER_RUNS} the caller waits for room rather than running the
+     * operation itself, which could overtake the ones already queued. With
+     * {@code DISCARD} the operation is dropped.
+     */
+    protected void enqueue(String realmId, ComponentModel model, ScimOperation operation) {
+        var enqueuedAt = System.nanoTime();
+        Runnable task = () -> run(realmId, model, operation, enqueuedAt);
+        var lane = lanes[Math.floorMod(Objects.hash(model.getId(), operation.scope(), operation.id()),
+                lanes.length)];
+        submitted.incrementAndGet();
+        try {
+            lane.execute(task);
+        } catch (RejectedExecutionException e) {
+            if (REJECT_DISCARD.equals(rejectionPolicy) || lane.isShutdown()) {
+                discard(model, operation);
+                return;
+            }
+            LOGGER.debugf("SCIM queue full, waiting to queue %s", operation);
+            try {
+                lane.getQueue().put(task);
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+                discard(model, operation);
+            }
+        }
+    }
+
+    private void discard(ComponentModel model, ScimOperation operation) {
+        rejected.incrementAndGet();
+        LOGGER.warnf("SCIM queue full, discarding %s for component %s", operation, model.getId());
+    }
+
+    protected void run(String realmId, ComponentModel model, ScimOperation operation, long enqueuedAt) {
+        try {
+            var delivered = new boolean[1];
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                session.getContext().setRealm(session.realms().getRealm(realmId));
+                delivered[0] = new ScimDispatcher(session, registry).deliver(model, operation);
+            });
+            if (delivered[0]) {
+                completed.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+            }
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            LOGGER.errorf(e, "Failed to run %s for component %s", operation, model.getId());
+        } finally {
+            var latency = System.nanoTime() - enqueuedAt;
+            totalLatency.addAndGet(latency);
+            maxLatency.accumulateAndGet(latency, Math::max);
+        }
+    }
+
+    public int getQueueDepth() {
+        return Arrays.stream(lanes).mapToInt(lane -> lane.getQueue().size()).sum();
+    }
+
+    public int getActiveCount() {
+        return Arrays.stream(lanes).mapToInt(ThreadPoolExecutor::getActiveCount).sum();
+    }
+
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public double getAverageLatencyMillis() {
+        var done = completed.get() + failed.get();
+        return done == 0 ? 0 : totalLatency.get() / (double) done / 1_000_000;
+    }
+
+    public double getMaxLatencyMillis() {
+        return maxLatency.get() / 1_000_000d;
+    }
+
+    public long getCoalesced() {
+        return coalescer == null ? 0 : coalescer.getCoalescedCount();
+    }
+
+    public void close() {
+        ScimMetrics.remove(meters);
+        if (coalescer != null) {
+            coalescer.close();
+        }
+        LOGGER.infof("Shutting down SCIM workers, %d operations pending", getQueueDepth());
+        for (var lane : lanes) {
+            lane.shutdown();
+        }
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        try {
+            for (var lane : lanes) {
+                if (!lane.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    lane.shutdownNow();
+                }
+            }
+        } catch (InterruptedException e) {
+            for (var lane : lanes) {
+                lane.shutdownNow();
+            }
+            Thread.currentThread().interrupt();
+        }
+    }
+}
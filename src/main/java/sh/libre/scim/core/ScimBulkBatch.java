@@ -0,0 +1,151 @@
+package sh.libre.scim.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Consumer;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import de.captaingoldfish.scim.sdk.common.constants.enums.HttpMethod;
+import de.captaingoldfish.scim.sdk.common.request.BulkResponseOperation;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Packs SCIM operations into /Bulk requests (RFC 7644 section 3.7) honoring the
+ * maxOperations and maxPayloadSize advertised by the service provider. Results
+ * are reported per operation through the given callbacks.
+ */
+public class ScimBulkBatch {
+    // Rough size of the JSON wrapping each operation (method, path, bulkId).
+    private static final int OPERATION_OVERHEAD = 128;
+
+    final private Logger LOGGER = Logger.getLogger(ScimBulkBatch.class);
+    final private ScimConnection connection;
+    final private int maxOperations;
+    final private long maxPayloadSize;
+    private List<Operation> pending = new ArrayList<>();
+    private long payloadSize;
+    private int sequence;
+
+    private record Operation(HttpMethod method, String path, String bulkId, JsonNode data,
+            Consumer<BulkResponseOperation> onSuccess, Runnable onFailure) {
+    }
+
+    public ScimBulkBatch(ScimConnection connection, ScimConnection.BulkSettings settings) {
+        this.connection = connection;
+        this.maxOperations = settings.maxOperations();
+        this.maxPayloadSize = settings.maxPayloadSize();
+    }
+
+    public void add(HttpMethod method, String path, JsonNode data, Consumer<BulkResponseOperation> onSuccess,
+            Runnable onFailure) {
+        var size = path.length() + OPERATION_OVERHEAD + (data == null ? 0 : data.toString().length());
+        if (!pending.isEmpty() && (pending.size() >= maxOperations || payloadSize + size > maxPayloadSize)) {
+            flush();
+        }
+        pending.add(new Operation(method, path, "op-" + ++sequence, data, onSuccess, onFailure));
+        payloadSize += size;
+    }
+
+    /**
+     * Number of operations waiting for the next bulk request.
+     */
+    public int size() {
+        return pending.size();
+    }
+
+    public void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        var operations = pending;
+        pending = new ArrayList<>();
+        payloadSize = 0;
+
+        LOGGER.infof("Sending bulk request with %d operations", operations.size());
+        var builder = connection.getRequestBuilder().bulk();
+        for (var operation : operations) {
+            var creator = builder.bulkRequestOperation(operation.path())
+                    .method(operation.method())
+                    .bulkId(operation.bulkId());
+            if (operation.data() != null) {
+                creator.data(operation.data());
+            }
+            creator.next();
+        }
+
+        var byBulkId = new HashMap<String, Operation>();
+        operations.forEach(o -> byBulkId.put(o.bulkId(), o));
+        try {
+            var response = connection.send("Bulk", ScimMetrics.OPERATION_BULK, builder::sendRequest);
+            if (!response.isSuccess()) {
+                LOGGER.warn(response.getResponseBody());
+                LOGGER.warn(response.getHttpStatus());
+                operations.forEach(o -> o.onFailure().run());
+                return;
+            }
+            var results = response.getResource().getBulkResponseOperations();
+            for (int i = 0; i < results.size(); i++) {
+                var result = results.get(i);
+                var position = i;
+                var operation = result.getBulkId().map(byBulkId::remove)
+                        .orElseGet(() -> position < operations.size()
+                                ? byBulkId.remove(operations.get(position).bulkId())
+                                : null);
+                if (operation == null) {
+                    continue;
+                }
+                var status = result.getStatus();
+                if (status != null && status >= 200 && status < 300) {
+                    succeed(operation, result);
+                } else {
+                    LOGGER.warnf("Bulk operation %s %s failed with status %s", operation.method(), operation.path(),
+                            status);
+                    fail(operation);
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.error("Bulk request failed", e);
+        }
+        // Operations without a result were not processed by the server.
+        byBulkId.values().forEach(this::fail);
+    }
+
+    /**
+     * Runs the success callback of one operation, a failing callback is
+     * reported as a failed operation without affecting the other results.
+     */
+    private void succeed(Operation operation, BulkResponseOperation result) {
+        try {
+            operation.onSuccess().accept(result);
+        } catch (Exception e) {
+            LOGGER.errorf(e, "Could not handle the result of bulk operation %s %s", operation.method(),
+                    operation.path());
+            fail(operation);
+        }
+    }
+
+    private void fail(Operation operation) {
+        try {
+            operation.onFailure().run();
+        } catch (Exception e) {
+            LOGGER.error(e);
+        }
+    }
+
+    /**
+     * Id of the resource created by a bulk operation, taken from its location or
+     * else from the resource returned in the response, null when neither is set.
+     */
+    public static String resourceId(BulkResponseOperation result) {
+        var location = result.getLocation().orElse("");
+        var id = location.substring(location.lastIndexOf('/') + 1);
+        if (!id.isBlank()) {
+            return id;
+        }
+        id = result.path("response").path("id").textValue();
+        return id == null || id.isBlank() ? null : id;
+    }
+}
@@ -0,0 +1,80 @@
+package sh.libre.scim.core;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.common.util.Time;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import sh.libre.scim.jpa.ScimChange;
+
+/**
+ * Append-only log of the users and groups touched by events, used by
+ * {@code syncSince} to only push what changed since the last sync. Changes
+ * that may affect any user, such as the SCIM roles granted by a role, are
+ * recorded for the whole realm and call for a full sync.
+ */
+public class ScimChangeLog {
+    public static final long RETENTION = TimeUnit.DAYS.toMillis(7);
+    public static final String SCOPE_REALM = "realm";
+
+    public record Change(String scope, String id) {
+    }
+
+    public static void record(KeycloakSession session, ScimOperation operation) {
+        record(session, session.getContext().getRealm().getId(), operation.scope(), operation.id());
+    }
+
+    /**
+     * Records a change that may affect every user of the realm.
+     */
+    public static void recordRealm(KeycloakSession session, String realmId) {
+        record(session, realmId, SCOPE_REALM, realmId);
+    }
+
+    private static void record(KeycloakSession session, String realmId, String scope, String id) {
+        var change = new ScimChange();
+        change.setId(KeycloakModelUtils.generateId());
+        change.setRealmId(realmId);
+        change.setScope(scope);
+        change.setResourceId(id);
+        change.setChangedAt(Time.currentTimeMillis());
+        session.getProvider(JpaConnectionProvider.class).getEntityManager().persist(change);
+    }
+
+    /**
+     * Whether the changes include one recorded for the whole realm.
+     */
+    public static boolean requiresFullSync(Set<Change> changes) {
+        return changes.stream().anyMatch(c -> SCOPE_REALM.equals(c.scope()));
+    }
+
+    /**
+     * Returns the distinct resources changed since the given time, in the order
+     * of their first change.
+     */
+    public static Set<Change> changedSince(KeycloakSession session, String realmId, long since) {
+        var changes = new LinkedHashSet<Change>();
+        session.getProvider(JpaConnectionProvider.class).getEntityManager()
+                .createNamedQuery("findChangesSince", ScimChange.class)
+                .setParameter("realmId", realmId)
+                .setParameter("since", since)
+                .getResultStream()
+                .forEach(c -> changes.add(new Change(c.getScope(), c.getResourceId())));
+        return changes;
+    }
+
+    /**
+     * Deletes the changes older than {@link #RETENTION}, run periodically by the
+     * event listener.
+     */
+    public static void prune(KeycloakSession session) {
+        session.getProvider(JpaConnectionProvider.class).getEntityManager()
+                .createNamedQuery("deleteChangesBefore")
+                .setParameter("before", Time.currentTimeMillis() - RETENTION)
+                .executeUpdate();
+    }
+}
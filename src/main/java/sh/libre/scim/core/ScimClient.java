@@ -1,99 +1,85 @@
 package sh.libre.scim.core;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import jakarta.persistence.EntityManager;
-import jakarta.persistence.NoResultException;
-import jakarta.ws.rs.ProcessingException;
 
-import de.captaingoldfish.scim.sdk.client.ScimClientConfig;
 import de.captaingoldfish.scim.sdk.client.ScimRequestBuilder;
-import de.captaingoldfish.scim.sdk.client.http.BasicAuth;
 import de.captaingoldfish.scim.sdk.client.response.ServerResponse;
+import de.captaingoldfish.scim.sdk.common.constants.enums.HttpMethod;
 import de.captaingoldfish.scim.sdk.common.exceptions.ResponseException;
+import de.captaingoldfish.scim.sdk.common.resources.Group;
 import de.captaingoldfish.scim.sdk.common.resources.ResourceNode;
 import de.captaingoldfish.scim.sdk.common.response.ListResponse;
 
 import org.jboss.logging.Logger;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RoleMapperModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.storage.user.SynchronizationResult;
 
-import com.google.common.net.HttpHeaders;
 
-import io.github.resilience4j.core.IntervalFunction;
-import io.github.resilience4j.retry.RetryConfig;
-import io.github.resilience4j.retry.RetryRegistry;
 
-
-public class ScimClient {
+public class ScimClient implements AutoCloseable {
     final protected Logger LOGGER = Logger.getLogger(ScimClient.class);
+    final protected ScimConnection connection;
     final protected ScimRequestBuilder scimRequestBuilder;
-    final protected RetryRegistry registry;
+    final protected ScimRetry retry;
     final protected KeycloakSession session;
-    final protected String contentType;
     final protected ComponentModel model;
     final protected String scimApplicationBaseUrl;
-    final protected Map<String, String> defaultHeaders;
-    final protected Map<String, String> expectedResponseHeaders;
-
-    public ScimClient(ComponentModel model, KeycloakSession session) {
-        this.model = model;
-        this.contentType = model.get("content-type");
-        this.session = session;
-        this.scimApplicationBaseUrl = model.get("endpoint");
-        this.defaultHeaders = new HashMap<>();
-        this.expectedResponseHeaders = new HashMap<>();
-
-        switch (model.get("auth-mode")) {
-            case "BEARER":
-                defaultHeaders.put(HttpHeaders.AUTHORIZATION,
-                    BearerAuthentication(model.get("auth-pass")));
-                break;
-            case "BASIC_AUTH":
-                defaultHeaders.put(HttpHeaders.AUTHORIZATION,
-                    BasicAuthentication(model.get("auth-user"),
-                                        model.get("auth-pass")));
-                break;
-        }
-
-        defaultHeaders.put(HttpHeaders.CONTENT_TYPE, contentType);
-
-        scimRequestBuilder = new ScimRequestBuilder(scimApplicationBaseUrl, genScimClientConfig());
+    private boolean retrying;
 
-        RetryConfig retryConfig = RetryConfig.custom()
-            .maxAttempts(10)
-            .intervalFunction(IntervalFunction.ofExponentialBackoff())
-            .retryExceptions(ProcessingException.class)
-            .build();
+    public ScimClient(ScimConnection connection, KeycloakSession session) {
+        this(connection, session, false);
+    }
 
-        registry = RetryRegistry.of(retryConfig);
+    /**
+     * @param retained whether the caller already took the reference on the
+     *                 connection released by {@link #close()}
+     */
+    ScimClient(ScimConnection connection, KeycloakSession session, boolean retained) {
+        if (!retained && !connection.retain()) {
+            throw new IllegalStateException("SCIM connection of component %s is closed"
+                    .formatted(connection.getModel().getId()));
+        }
+        this.connection = connection;
+        this.model = connection.getModel();
+        this.session = session;
+        this.scimApplicationBaseUrl = connection.getBaseUrl();
+        this.scimRequestBuilder = connection.getRequestBuilder();
+        this.retry = connection.getRetry();
     }
 
-    protected String BasicAuthentication(String username, String password) {
-        return  BasicAuth.builder()
-        .username(model.get(username))
-        .password(model.get(password))
-        .build()
-        .getAuthorizationHeaderValue();
+    public ComponentModel getModel() {
+        return model;
     }
 
-    protected ScimClientConfig genScimClientConfig() {
-        return ScimClientConfig.builder()
-        .httpHeaders(defaultHeaders)
-        .connectTimeout(5)
-        .requestTimeout(5)
-        .socketTimeout(5)
-        .expectedHttpResponseHeaders(expectedResponseHeaders)
-        .hostnameVerifier((s, sslSession) -> true)
-        .build();
+    /**
+     * Retries failed requests on the current thread, for storage sync jobs.
+     * Otherwise a single attempt is made and callers on the event path defer
+     * retryable failures to the outbox (see {@link ScimRetry#isRetryable}).
+     */
+    public ScimClient withRetries() {
+        this.retrying = true;
+        return this;
     }
 
-    protected String BearerAuthentication(String token) {
-        return "Bearer " + token ;
+    @Override
+    public void close() {
+        connection.release();
     }
 
     protected String genScimUrl(String scimEndpoint, String resourcePath) {
@@ -121,78 +107,223 @@ public class ScimClient {
         }
     }
 
+    protected boolean usePatchOp(Adapter<?, ?> adapter) {
+        return ("Group".equals(adapter.getType()) && this.model.get("group-patchOp", false))
+                || ("User".equals(adapter.getType()) && this.model.get("user-patchOp", false));
+    }
+
+    /**
+     * Returns a bulk batch when bulk is enabled on the component and supported
+     * by the service provider, null otherwise.
+     */
+    protected ScimBulkBatch getBulkBatch() {
+        if (!this.model.get("sync-bulk", false)) {
+            return null;
+        }
+        var settings = connection.getBulkSettings();
+        if (settings == null) {
+            return null;
+        }
+        return new ScimBulkBatch(connection, settings);
+    }
+
+    /**
+     * Chunk size used to page group members, 0 when members are sent all at
+     * once. Streaming relies on PATCH, so it requires group patchOp.
+     */
+    protected int getMemberChunkSize(Adapter<?, ?> adapter) {
+        if (!(adapter instanceof GroupAdapter) || !usePatchOp(adapter)) {
+            return 0;
+        }
+        return Math.max(0, this.model.get("group-member-chunk-size", 0));
+    }
+
     public <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> void create(Class<A> aClass,
             M kcModel) {
         var adapter = getAdapter(aClass);
+        var chunkSize = getMemberChunkSize(adapter);
+        if (chunkSize > 0) {
+            createStreaming((GroupAdapter) adapter, (GroupModel) kcModel, chunkSize);
+            return;
+        }
         adapter.apply(kcModel);
         if (adapter.skip) {
             return;
         }
         // If mapping exist then it was created by import so skip.
-        if (adapter.query("findById", adapter.getId()).getResultList().size() != 0) {
+        if (adapter.getMapping() != null) {
             return;
         }
-        var retry = registry.retry("create-" + adapter.getId());
+        var scimResource = adapter.toSCIM(false);
 
-        ServerResponse<S> response = retry.executeSupplier(() -> {
-            try {
-                return scimRequestBuilder
-                .create(adapter.getResourceClass(), ("/" + adapter.getSCIMEndpoint()).formatted())
-                .setResource(adapter.toSCIM(false))
-                .sendRequest();
-            } catch (ResponseException e) {
-                throw new RuntimeException(e);
-            }
-        });
-
-        if (!response.isSuccess()){
-            LOGGER.warn(response.getResponseBody());
-            LOGGER.warn(response.getHttpStatus());
+        ServerResponse<S> response;
+        try {
+            var request = scimRequestBuilder
+            .create(adapter.getResourceClass(), ("/" + adapter.getSCIMEndpoint()).formatted())
+            .setResource(scimResource);
+            response = send(ScimRetry.Operation.CREATE,
+                    () -> connection.send(adapter.getType(), ScimMetrics.OPERATION_CREATE, request::sendRequest));
+        } catch (ResponseException e) {
+            throw new RuntimeException(e);
         }
 
+        checkResponse(adapter, ScimMetrics.OPERATION_CREATE, response);
+
         adapter.apply(response.getResource());
+        adapter.setFingerprint(Adapter.fingerprint(scimResource));
         adapter.saveMapping();
     };
 
     public <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> void replace(Class<A> aClass,
             M kcModel) {
         var adapter = getAdapter(aClass);
+        var chunkSize = getMemberChunkSize(adapter);
+        if (chunkSize > 0) {
+            replaceStreaming((GroupAdapter) adapter, (GroupModel) kcModel, chunkSize);
+            return;
+        }
+        adapter.apply(kcModel);
+        if (adapter.skip) {
+            return;
+        }
+        var resource = adapter.getMapping();
+        if (resource == null) {
+            LOGGER.warnf("failed to replace resource %s, scim mapping not found", adapter.getId());
+            return;
+        }
+        adapter.apply(resource);
+        var scimResource = adapter.toSCIM(false);
+        var fingerprint = Adapter.fingerprint(scimResource);
+        if (fingerprint.equals(resource.getFingerprint())) {
+            LOGGER.debugf("%s %s unchanged, skipping replace", adapter.getType(), adapter.getId());
+            return;
+        }
+        String url = genScimUrl(adapter.getSCIMEndpoint(), adapter.getExternalId());
+        ServerResponse<S> response;
         try {
-            adapter.apply(kcModel);
-            if (adapter.skip) {
-                return;
+            LOGGER.info(adapter.getType());
+            if (usePatchOp(adapter)) {
+                var request = adapter.toPatchBuilder(scimRequestBuilder, url);
+                response = send(ScimRetry.Operation.REPLACE,
+                        () -> connection.send(adapter.getType(), ScimMetrics.OPERATION_PATCH, request::sendRequest));
             }
-            var resource = adapter.query("findById", adapter.getId()).getSingleResult();
-            adapter.apply(resource);
-            String url = genScimUrl(adapter.getSCIMEndpoint(), adapter.getExternalId());
-            var retry = registry.retry("replace-" + adapter.getId());
-            ServerResponse<S> response = retry.executeSupplier(() -> {
-                try {
-                    LOGGER.info(adapter.getType());
-                    if ((adapter.getType() == "Group" && this.model.get("group-patchOp", false))
-                         || (adapter.getType() == "User" && this.model.get("user-patchOp", false))) {
-                        return adapter.toPatchBuilder(scimRequestBuilder, url)
-                                      .sendRequest();
-                    }
-                    else {
-                        return scimRequestBuilder
-                            .update(url, adapter.getResourceClass())
-                            .setResource(adapter.toSCIM(false))
-                            .sendRequest();
-                    }
-                } catch (ResponseException e) {
-                    throw new RuntimeException(e);
-                }
-            });
-            if (!response.isSuccess()){
-                LOGGER.warn(response.getResponseBody());
-                LOGGER.warn(response.getHttpStatus());
+            else {
+                var request = scimRequestBuilder
+                    .update(url, adapter.getResourceClass())
+                    .setResource(scimResource);
+                response = send(ScimRetry.Operation.REPLACE,
+                        () -> connection.send(adapter.getType(), ScimMetrics.OPERATION_REPLACE, request::sendRequest));
             }
-        } catch (NoResultException e) {
+        } catch (ResponseException e) {
+            throw new RuntimeException(e);
+        }
+        checkResponse(adapter, ScimMetrics.OPERATION_REPLACE, response);
+        adapter.updateFingerprint(fingerprint);
+    }
+
+    /**
+     * Creates a group without members, then adds them with one PATCH per chunk
+     * of {@code chunkSize} members.
+     */
+    protected void createStreaming(GroupAdapter adapter, GroupModel group, int chunkSize) {
+        adapter.setStreamMembers(true);
+        adapter.apply(group);
+        if (adapter.skip || adapter.getMapping() != null) {
+            return;
+        }
+        var scimResource = adapter.toSCIM(false);
+        ServerResponse<Group> response;
+        try {
+            var request = scimRequestBuilder
+                    .create(Group.class, "/" + adapter.getSCIMEndpoint())
+                    .setResource(scimResource);
+            response = send(ScimRetry.Operation.CREATE,
+                    () -> connection.send(adapter.getType(), ScimMetrics.OPERATION_CREATE, request::sendRequest));
+        } catch (ResponseException e) {
+            throw new RuntimeException(e);
+        }
+        checkResponse(adapter, ScimMetrics.OPERATION_CREATE, response);
+        adapter.apply(response.getResource());
+        adapter.saveMapping();
+        adapter.updateFingerprint(sendMemberChunks(adapter, chunkSize, false));
+    }
+
+    /**
+     * Replaces a group while paging its members: the first chunk resets the
+     * remote member list, the next ones are added to it. The members are paged
+     * once beforehand to skip groups whose fingerprint did not change.
+     */
+    protected void replaceStreaming(GroupAdapter adapter, GroupModel group, int chunkSize) {
+        adapter.setStreamMembers(true);
+        adapter.apply(group);
+        if (adapter.skip) {
+            return;
+        }
+        var resource = adapter.getMapping();
+        if (resource == null) {
             LOGGER.warnf("failed to replace resource %s, scim mapping not found", adapter.getId());
-        } catch (Exception e) {
-            LOGGER.error(e);
+            return;
+        }
+        adapter.apply(resource);
+        if (adapter.streamingFingerprint(chunkSize).equals(resource.getFingerprint())) {
+            LOGGER.debugf("%s %s unchanged, skipping replace", adapter.getType(), adapter.getId());
+            return;
         }
+        adapter.updateFingerprint(sendMemberChunks(adapter, chunkSize, true));
+    }
+
+    /**
+     * Sends the members chunk by chunk and returns the fingerprint of the members
+     * actually sent. When a chunk is rejected the remaining ones are not sent,
+     * the stored fingerprint is cleared so the partial member list is replaced
+     * on the next attempt, and a {@link ScimResponseException} is thrown.
+     */
+    protected String sendMemberChunks(GroupAdapter adapter, int chunkSize, boolean reset) {
+        String url = genScimUrl(adapter.getSCIMEndpoint(), adapter.getExternalId());
+        var digest = adapter.newMemberDigest();
+        var first = new boolean[] { true };
+        var failure = new ServerResponse<?>[1];
+        var sent = adapter.forEachMemberChunk(chunkSize, chunk -> {
+            var resetChunk = reset && first[0];
+            first[0] = false;
+            if (chunk.isEmpty() && !resetChunk) {
+                return true;
+            }
+            ServerResponse<Group> response;
+            try {
+                var request = adapter.toMemberChunkPatchBuilder(scimRequestBuilder, url, chunk, resetChunk);
+                response = send(ScimRetry.Operation.REPLACE,
+                        () -> connection.send(adapter.getType(), ScimMetrics.OPERATION_PATCH, request::sendRequest));
+            } catch (ResponseException e) {
+                throw new RuntimeException(e);
+            }
+            if (!response.isSuccess()) {
+                failure[0] = response;
+                return false;
+            }
+            GroupAdapter.updateMemberDigest(digest, chunk);
+            return true;
+        });
+        if (!sent) {
+            clearFingerprint(adapter);
+            checkResponse(adapter, ScimMetrics.OPERATION_PATCH, failure[0]);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Clears the stored fingerprint of a group in its own transaction, so it is
+     * cleared even when the current one rolls back.
+     */
+    protected void clearFingerprint(GroupAdapter adapter) {
+        var realmId = getRealmId();
+        var id = adapter.getId();
+        KeycloakModelUtils.runJobInTransaction(session.getKeycloakSessionFactory(), s -> {
+            s.getContext().setRealm(s.realms().getRealm(realmId));
+            var other = new GroupAdapter(s, model.getId());
+            other.setId(id);
+            other.updateFingerprint(null);
+        });
     }
 
     public <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> void delete(Class<A> aClass,
@@ -200,31 +331,141 @@ public class ScimClient {
         var adapter = getAdapter(aClass);
         adapter.setId(id);
 
+        var resource = adapter.getMapping();
+        if (resource == null) {
+            LOGGER.warnf("Failed to delete resource %s, scim mapping not found", id);
+            return;
+        }
+        adapter.apply(resource);
+
+
+        ServerResponse<S> response;
         try {
-            var resource = adapter.query("findById", adapter.getId()).getSingleResult();
-            adapter.apply(resource);
+            var request = scimRequestBuilder.delete(genScimUrl(adapter.getSCIMEndpoint(),
+                                                               adapter.getExternalId()),
+                                                    adapter.getResourceClass());
+            response = send(ScimRetry.Operation.DELETE,
+                    () -> connection.send(adapter.getType(), ScimMetrics.OPERATION_DELETE, request::sendRequest));
+        } catch (ResponseException e) {
+            throw new RuntimeException(e);
+        }
 
-            var retry = registry.retry("delete-" + id);
+        // Already gone on the service provider side, the mapping can go too.
+        if (response.getHttpStatus() != 404) {
+            checkResponse(adapter, ScimMetrics.OPERATION_DELETE, response);
+        }
+        adapter.deleteMapping();
+    }
 
-            ServerResponse<S> response = retry.executeSupplier(() -> {
-                try {
-                    return scimRequestBuilder.delete(genScimUrl(adapter.getSCIMEndpoint(), adapter.getExternalId()),
-                                                                adapter.getResourceClass())
-                                             .sendRequest();
-                } catch (ResponseException e) {
-                    throw new RuntimeException(e);
-                }
-            });
+    protected <T extends ServerResponse<?>> T send(ScimRetry.Operation operation, Supplier<T> request) {
+        return retrying ? retry.execute(operation, request) : request.get();
+    }
+
+    /**
+     * Throws a {@link ScimResponseException} unless the response is a success.
+     */
+    protected void checkResponse(Adapter<?, ?> adapter, String operation, ServerResponse<?> response) {
+        if (!response.isSuccess()) {
+            throw new ScimResponseException(adapter.getType(), operation, adapter.getId(),
+                    response.getHttpStatus(), response.getResponseBody());
+        }
+    }
+
+    public void execute(ScimOperation operation) {
+        if (operation.action() == ScimOperation.Action.ADD_MEMBER
+                || operation.action() == ScimOperation.Action.REMOVE_MEMBER) {
+            updateMembership(operation);
+        } else if (ScimDispatcher.SCOPE_USER.equals(operation.scope())) {
+            execute(UserAdapter.class, operation);
+        } else if (ScimDispatcher.SCOPE_GROUP.equals(operation.scope())) {
+            execute(GroupAdapter.class, operation);
+        }
+    }
 
-            if (!response.isSuccess()){
-                LOGGER.warn(response.getResponseBody());
-                LOGGER.warn(response.getHttpStatus());
+    /**
+     * Sends a single member addition or removal as a PATCH when the service
+     * provider uses patchOp for groups, falls back to a full replace otherwise.
+     * Groups flagged {@code scim-skip} are left alone and a rejected PATCH
+     * throws a {@link ScimResponseException}.
+     */
+    protected void updateMembership(ScimOperation operation) {
+        var adapter = getAdapter(GroupAdapter.class);
+        adapter.setId(operation.id());
+        var mapping = adapter.getMapping();
+        if (mapping == null || !usePatchOp(adapter)) {
+            execute(GroupAdapter.class, ScimOperation.replace(ScimDispatcher.SCOPE_GROUP, operation.id()));
+            return;
+        }
+        var group = adapter.getEntity(operation.id());
+        if (group == null) {
+            LOGGER.warnf("Group %s not found, skipping %s", operation.id(), operation.action());
+            return;
+        }
+        // Only the group itself is needed, not its whole member list.
+        adapter.setStreamMembers(true);
+        adapter.apply(group);
+        if (adapter.skip) {
+            return;
+        }
+        adapter.apply(mapping);
+
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        if (operation.action() == ScimOperation.Action.ADD_MEMBER) {
+            var externalId = adapter.ensureUserMapping(operation.memberId());
+            if (externalId == null) {
+                if (session.users().getUserById(session.getContext().getRealm(), operation.memberId()) == null) {
+                    LOGGER.infof("User %s not found, nothing to add", operation.memberId());
+                    return;
+                }
+                throw new IllegalStateException("Could not map user %s".formatted(operation.memberId()));
+            }
+            added.add(externalId);
+        } else {
+            var userAdapter = getAdapter(UserAdapter.class);
+            userAdapter.setId(operation.memberId());
+            var userMapping = userAdapter.getMapping();
+            if (userMapping == null) {
+                LOGGER.infof("User %s has no SCIM mapping, nothing to remove", operation.memberId());
+                return;
             }
+            removed.add(userMapping.getExternalId());
+        }
 
-            getEM().remove(resource);
+        String url = genScimUrl(adapter.getSCIMEndpoint(), adapter.getExternalId());
+        ServerResponse<Group> response;
+        try {
+            var request = adapter.toMembershipPatchBuilder(scimRequestBuilder, url, added, removed);
+            response = send(ScimRetry.Operation.MEMBERSHIP,
+                    () -> connection.send(adapter.getType(), ScimMetrics.OPERATION_PATCH, request::sendRequest));
+        } catch (ResponseException e) {
+            throw new RuntimeException(e);
+        }
+        checkResponse(adapter, ScimMetrics.OPERATION_PATCH, response);
+        // The stored fingerprint no longer matches the remote member list.
+        adapter.updateFingerprint(null);
+    }
 
-        } catch (NoResultException e) {
-            LOGGER.warnf("Failed to delete resource %s, scim mapping not found", id);
+    protected <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> void execute(
+            Class<A> aClass, ScimOperation operation) {
+        if (operation.action() == ScimOperation.Action.DELETE) {
+            delete(aClass, operation.id());
+            return;
+        }
+        var kcModel = getAdapter(aClass).getEntity(operation.id());
+        if (kcModel == null) {
+            LOGGER.warnf("%s %s not found, skipping %s", operation.scope(), operation.id(), operation.action());
+            return;
+        }
+        switch (operation.action()) {
+            case CREATE:
+                create(aClass, kcModel);
+                break;
+            case REPLACE:
+                replace(aClass, kcModel);
+                break;
+            default:
+                break;
         }
     }
 
@@ -232,103 +473,405 @@ public class ScimClient {
             Class<A> aClass,
             SynchronizationResult syncRes) {
         LOGGER.info("Refresh resources");
+        var event = ScimEvents.SyncPhaseEvent.begin(this.model.getId(), getAdapter(aClass).getType(),
+                ScimEvents.PHASE_REFRESH);
+        var updated = syncRes.getUpdated();
+        try {
+            var bulk = getBulkBatch();
+            if (bulk != null) {
+                this.refreshResourcesInBulk(aClass, syncRes, bulk);
+                return;
+            }
+            var concurrency = this.model.get("sync-refresh-concurrency", 1);
+            if (concurrency > 1) {
+                this.refreshResourcesConcurrently(aClass, syncRes, concurrency);
+                return;
+            }
+            getAdapter(aClass).getResourceStream().forEach(resource -> refreshResource(aClass, resource, syncRes));
+        } finally {
+            event.end(syncRes.getUpdated() - updated);
+        }
+    }
+
+    /**
+     * Refreshes resources on {@code concurrency} workers. Only ids leave the
+     * current session: each resource is reloaded and its mapping written in a
+     * session and transaction of its own.
+     */
+    protected <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> void refreshResourcesConcurrently(
+            Class<A> aClass,
+            SynchronizationResult syncRes, int concurrency) {
+        var realmId = getRealmId();
+        var sessionFactory = session.getKeycloakSessionFactory();
+        var threadCount = new AtomicInteger();
+        var pool = Executors.newFixedThreadPool(concurrency, r -> {
+            var thread = new Thread(r, "scim-refresh-" + model.getId() + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Bounds the number of queued resources so ids are not all loaded upfront.
+        var pending = new Semaphore(concurrency * 2);
+        try {
+            getAdapter(aClass).getResourceIdStream().forEach(id -> {
+                pending.acquireUninterruptibly();
+                pool.execute(() -> {
+                    try {
+                        KeycloakModelUtils.runJobInTransaction(sessionFactory, s -> {
+                            s.getContext().setRealm(s.realms().getRealm(realmId));
+                            try (var client = new ScimClient(connection, s)) {
+                                client.retrying = retrying;
+                                var resource = client.getAdapter(aClass).getEntity(id);
+                                if (resource != null) {
+                                    client.refreshResource(aClass, resource, syncRes);
+                                }
+                            }
+                        });
+                    } catch (Exception e) {
+                        LOGGER.error(e);
+                        synchronized (syncRes) {
+                            syncRes.increaseFailed();
+                        }
+                    } finally {
+                        pending.release();
+                    }
+                });
+            });
+        } finally {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(1, TimeUnit.DAYS);
+            } catch (InterruptedException e) {
+                pool.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Refreshes only the given resources. Resources that no longer exist in
+     * Keycloak are deleted from the service provider.
+     */
+    public <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> void refreshChanged(
+            Class<A> aClass, Iterable<String> ids, SynchronizationResult syncRes) {
+        LOGGER.info("Refresh changed resources");
+        var start = System.nanoTime();
+        try {
+            refreshEach(aClass, ids, syncRes);
+        } finally {
+            ScimMetrics.recordSync(this.model.getId(), getAdapter(aClass).getType(), System.nanoTime() - start);
+        }
+    }
+
+    private <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> void refreshEach(
+            Class<A> aClass, Iterable<String> ids, SynchronizationResult syncRes) {
+        for (var id : ids) {
+            var resource = getAdapter(aClass).getEntity(id);
+            if (resource != null) {
+                refreshResource(aClass, resource, syncRes);
+                continue;
+            }
+            var adapter = getAdapter(aClass);
+            adapter.setId(id);
+            if (adapter.getMapping() == null) {
+                continue;
+            }
+            try {
+                delete(aClass, id);
+                syncRes.increaseRemoved();
+            } catch (Exception e) {
+                LOGGER.error(e);
+                syncRes.increaseFailed();
+            }
+        }
+    }
+
+    protected <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> void refreshResource(
+            Class<A> aClass, M resource, SynchronizationResult syncRes) {
+        var adapter = getAdapter(aClass);
+        adapter.apply(resource);
+        LOGGER.infof("Reconciling local resource %s", adapter.getId());
+        if (adapter.skipRefresh()) {
+            return;
+        }
+        try {
+            var mapping = adapter.getMapping();
+            if (mapping == null) {
+                LOGGER.info("Creating it");
+                this.create(aClass, resource);
+            } else {
+                LOGGER.info("Replacing it");
+                this.replace(aClass, resource);
+            }
+            synchronized (syncRes) {
+                syncRes.increaseUpdated();
+            }
+        } catch (Exception e) {
+            LOGGER.error(e);
+            synchronized (syncRes) {
+                syncRes.increaseFailed();
+            }
+        }
+    }
+
+    protected <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> void refreshResourcesInBulk(
+            Class<A> aClass,
+            SynchronizationResult syncRes, ScimBulkBatch bulk) {
         getAdapter(aClass).getResourceStream().forEach(resource -> {
             var adapter = getAdapter(aClass);
             adapter.apply(resource);
             LOGGER.infof("Reconciling local resource %s", adapter.getId());
-            if (!adapter.skipRefresh()) {
+            if (adapter.skipRefresh() || adapter.skip) {
+                return;
+            }
+            try {
                 var mapping = adapter.getMapping();
+                var endpoint = "/" + adapter.getSCIMEndpoint();
                 if (mapping == null) {
-                    LOGGER.info("Creating it");
-                    this.create(aClass, resource);
-                } else {
-                    LOGGER.info("Replacing it");
+                    var scimResource = adapter.toSCIM(false);
+                    bulk.add(HttpMethod.POST, endpoint, scimResource, result -> {
+                        var externalId = ScimBulkBatch.resourceId(result);
+                        if (externalId == null) {
+                            throw new IllegalStateException(
+                                    "No id returned for %s %s".formatted(adapter.getType(), adapter.getId()));
+                        }
+                        adapter.setExternalId(externalId);
+                        adapter.setFingerprint(Adapter.fingerprint(scimResource));
+                        adapter.saveMapping();
+                        syncRes.increaseUpdated();
+                    }, syncRes::increaseFailed);
+                } else if (usePatchOp(adapter)) {
+                    // PatchOp targets don't accept PUT, even inside a bulk request.
                     this.replace(aClass, resource);
+                    syncRes.increaseUpdated();
+                } else {
+                    adapter.apply(mapping);
+                    var scimResource = adapter.toSCIM(false);
+                    var fingerprint = Adapter.fingerprint(scimResource);
+                    if (fingerprint.equals(mapping.getFingerprint())) {
+                        syncRes.increaseUpdated();
+                        return;
+                    }
+                    bulk.add(HttpMethod.PUT, endpoint + "/" + adapter.getExternalId(), scimResource, result -> {
+                        adapter.updateFingerprint(fingerprint);
+                        syncRes.increaseUpdated();
+                    }, syncRes::increaseFailed);
                 }
-                syncRes.increaseUpdated();
+            } catch (Exception e) {
+                LOGGER.error(e);
+                syncRes.increaseFailed();
             }
         });
-
+        flushBulk(aClass, bulk);
     }
 
+    /**
+     * Walks the remote resources page by page ({@code startIndex}/{@code count}).
+     * A page is reconciled, flushed and its mappings detached from the entity
+     * manager before the next one is read, the other entities of the session
+     * stay managed; with {@code sync-import-prefetch} the next page is
+     * fetched on a dedicated thread while the current one is reconciled. Remote
+     * resources to delete are only deleted once the whole list was read, so
+     * deleting them does not shift the pages still to come.
+     */
     public <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> void importResources(
             Class<A> aClass, SynchronizationResult syncRes) {
         LOGGER.info("Import");
+        var bulk = getBulkBatch();
+        var adapter = getAdapter(aClass);
+        String endpointPath = "/" + adapter.getSCIMEndpoint();
+        Class<S> resourceClass = adapter.getResourceClass();
+        int pageSize = Math.max(1, this.model.get("sync-import-page-size", 100));
+        boolean prefetch = this.model.get("sync-import-prefetch", false);
+        LOGGER.infof("Importing resources from %s, %d per page", endpointPath, pageSize);
+
+        var remoteDeletions = new ArrayList<String>();
+        var prefetcher = prefetch ? Executors.newSingleThreadExecutor(r -> {
+            var thread = new Thread(r, "scim-import-" + model.getId());
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+        long startIndex = 1;
+        CompletableFuture<ListResponse<S>> nextPage = null;
+        Adapter.trackMappings(session);
         try {
-            var adapter = getAdapter(aClass);
-            String endpointPath = "/" + adapter.getSCIMEndpoint();
-            LOGGER.infof("Importing resources from %s", endpointPath);
-            ServerResponse<ListResponse<S>> response = scimRequestBuilder.list(endpointPath, adapter.getResourceClass()).get().sendRequest();
-            ListResponse<S> resourceTypeListResponse = response.getResource();
-
-            for (var resource : resourceTypeListResponse.getListedResources()) {
+            while (true) {
+                ListResponse<S> page;
                 try {
-                    LOGGER.infof("Reconciling remote resource %s", resource);
-                    adapter = getAdapter(aClass);
-                    adapter.apply(resource);
-
-                    var mapping = adapter.getMapping();
-                    if (mapping != null) {
-                        adapter.apply(mapping);
-                        if (adapter.entityExists()) {
-                            LOGGER.info("Valid mapping found, skipping");
-                            continue;
-                        } else {
-                            LOGGER.info("Delete a dangling mapping");
-                            adapter.deleteMapping();
-                        }
-                    }
+                    page = nextPage != null ? nextPage.join()
+                            : listPage(endpointPath, resourceClass, startIndex, pageSize);
+                } catch (CompletionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+                nextPage = null;
+                var resources = page.getListedResources();
+                startIndex += resources.size();
+                boolean hasMore = !resources.isEmpty() && startIndex <= page.getTotalResults();
+                if (hasMore && prefetcher != null) {
+                    long nextIndex = startIndex;
+                    nextPage = CompletableFuture.supplyAsync(
+                            () -> listPage(endpointPath, resourceClass, nextIndex, pageSize), prefetcher);
+                }
 
-                    var mapped = adapter.tryToMap();
-                    if (mapped) {
-                        LOGGER.info("Matched");
-                        adapter.saveMapping();
-                    } else {
-                        switch (this.model.get("sync-import-action")) {
-                            case "CREATE_LOCAL":
-                                LOGGER.info("Create local resource");
-                                try {
-                                    adapter.createEntity();
-                                    adapter.saveMapping();
-                                    syncRes.increaseAdded();
-                                } catch (Exception e) {
-                                    LOGGER.error(e);
-                                }
-                                break;
-                            case "DELETE_REMOTE":
-                                LOGGER.info("Delete remote resource");
-                                scimRequestBuilder
-                                    .delete(genScimUrl(adapter.getSCIMEndpoint(),
-                                                       resource.getId().get()),
-                                                       adapter.getResourceClass())
-                                    .sendRequest();
-                                syncRes.increaseRemoved();
-                                break;
-                        }
-                    }
-                } catch (Exception e) {
-                    LOGGER.error(e);
-                    e.printStackTrace();
+                var reconcile = ScimEvents.SyncPhaseEvent.begin(this.model.getId(), adapter.getType(),
+                        ScimEvents.PHASE_RECONCILE);
+                for (var resource : resources) {
+                    importResource(aClass, resource, syncRes, remoteDeletions);
+                }
+                reconcile.end(resources.size());
+                var flush = ScimEvents.SyncPhaseEvent.begin(this.model.getId(), adapter.getType(),
+                        ScimEvents.PHASE_FLUSH);
+                Adapter.detachTrackedMappings(session, getEM());
+                flush.end(resources.size());
+                if (!hasMore) {
+                    break;
+                }
+            }
+        } finally {
+            Adapter.untrackMappings(session);
+            if (nextPage != null) {
+                nextPage.cancel(true);
+            }
+            if (prefetcher != null) {
+                prefetcher.shutdownNow();
+            }
+        }
+        deleteRemote(adapter, remoteDeletions, syncRes, bulk);
+        if (bulk != null) {
+            flushBulk(aClass, bulk);
+        }
+    }
+
+    /**
+     * Deletes the remote resources found without a local counterpart during an
+     * import, in bulk when available.
+     */
+    protected void deleteRemote(Adapter<?, ?> adapter, List<String> ids, SynchronizationResult syncRes,
+            ScimBulkBatch bulk) {
+        for (var id : ids) {
+            LOGGER.infof("Delete remote resource %s", id);
+            if (bulk != null) {
+                bulk.add(HttpMethod.DELETE, "/" + adapter.getSCIMEndpoint() + "/" + id, null,
+                        result -> syncRes.increaseRemoved(), syncRes::increaseFailed);
+                continue;
+            }
+            try {
+                var request = scimRequestBuilder
+                        .delete(genScimUrl(adapter.getSCIMEndpoint(), id), adapter.getResourceClass());
+                ServerResponse<?> response = connection.send(adapter.getType(), ScimMetrics.OPERATION_DELETE,
+                        request::sendRequest);
+                if (response.isSuccess() || response.getHttpStatus() == 404) {
+                    syncRes.increaseRemoved();
+                } else {
+                    LOGGER.warnf("Failed to delete remote resource %s: %s", id, response.getHttpStatus());
                     syncRes.increaseFailed();
                 }
+            } catch (Exception e) {
+                LOGGER.error(e);
+                syncRes.increaseFailed();
+            }
+        }
+    }
+
+    protected <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> void flushBulk(
+            Class<A> aClass, ScimBulkBatch bulk) {
+        var event = ScimEvents.SyncPhaseEvent.begin(this.model.getId(), getAdapter(aClass).getType(),
+                ScimEvents.PHASE_BULK_FLUSH);
+        var pending = bulk.size();
+        try {
+            bulk.flush();
+        } finally {
+            event.end(pending);
+        }
+    }
+
+    protected <S extends ResourceNode> ListResponse<S> listPage(String endpointPath, Class<S> resourceClass,
+            long startIndex, int count) {
+        LOGGER.debugf("Listing %s from %d", endpointPath, startIndex);
+        var event = ScimEvents.SyncPhaseEvent.begin(this.model.getId(), resourceClass.getSimpleName(),
+                ScimEvents.PHASE_LIST);
+        long listed = 0;
+        try {
+            var request = scimRequestBuilder.list(endpointPath, resourceClass)
+                    .startIndex(startIndex)
+                    .count(count)
+                    .get();
+            ServerResponse<ListResponse<S>> response = send(ScimRetry.Operation.LIST,
+                    () -> connection.send(resourceClass.getSimpleName(), ScimMetrics.OPERATION_LIST,
+                            request::sendRequest));
+            if (!response.isSuccess()) {
+                throw new RuntimeException("Error during import: %s %s".formatted(response.getHttpStatus(),
+                        response.getResponseBody()));
             }
+            listed = response.getResource().getListedResources().size();
+            return response.getResource();
         } catch (ResponseException e) {
             LOGGER.error("Error during import: " + e.getMessage(), e);
             throw new RuntimeException(e);
+        } finally {
+            event.end(listed);
         }
     }
 
-    public <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> void sync(Class<A> aClass,
-            SynchronizationResult syncRes) {
-        if (this.model.get("sync-import", false)) {
-            this.importResources(aClass, syncRes);
-        }
-        if (this.model.get("sync-refresh", false)) {
-            this.refreshResources(aClass, syncRes);
+    protected <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> void importResource(
+            Class<A> aClass, S resource, SynchronizationResult syncRes, List<String> remoteDeletions) {
+        try {
+            LOGGER.infof("Reconciling remote resource %s", resource);
+            var adapter = getAdapter(aClass);
+            adapter.apply(resource);
+
+            var mapping = adapter.getMapping();
+            if (mapping != null) {
+                adapter.apply(mapping);
+                if (adapter.entityExists()) {
+                    LOGGER.info("Valid mapping found, skipping");
+                    return;
+                } else {
+                    LOGGER.info("Delete a dangling mapping");
+                    adapter.deleteMapping();
+                }
+            }
+
+            var mapped = adapter.tryToMap();
+            if (mapped) {
+                LOGGER.info("Matched");
+                adapter.saveMapping();
+            } else {
+                switch (this.model.get("sync-import-action")) {
+                    case "CREATE_LOCAL":
+                        LOGGER.info("Create local resource");
+                        try {
+                            adapter.createEntity();
+                            adapter.saveMapping();
+                            syncRes.increaseAdded();
+                        } catch (Exception e) {
+                            LOGGER.error(e);
+                        }
+                        break;
+                    case "DELETE_REMOTE":
+                        LOGGER.info("Remote resource to delete once the import is done");
+                        remoteDeletions.add(resource.getId().get());
+                        break;
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.error(e);
+            e.printStackTrace();
+            syncRes.increaseFailed();
         }
     }
 
-    public void close() {
-        scimRequestBuilder.close();
+    public <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> void sync(Class<A> aClass,
+            SynchronizationResult syncRes) {
+        var start = System.nanoTime();
+        try {
+            if (this.model.get("sync-import", false)) {
+                this.importResources(aClass, syncRes);
+            }
+            if (this.model.get("sync-refresh", false)) {
+                this.refreshResources(aClass, syncRes);
+            }
+        } finally {
+            ScimMetrics.recordSync(this.model.getId(), getAdapter(aClass).getType(), System.nanoTime() - start);
+        }
     }
 }
@@ -0,0 +1,62 @@
+package sh.libre.scim.core;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jboss.logging.Logger;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+
+/**
+ * Keeps one {@link ScimConnection} per SCIM component. A connection is rebuilt
+ * when the component configuration changes and dropped when the component is
+ * updated or removed. Replaced connections are closed once the clients still
+ * using them are done.
+ */
+public class ScimClientRegistry {
+    private static final ScimClientRegistry INSTANCE = new ScimClientRegistry();
+
+    final private Logger LOGGER = Logger.getLogger(ScimClientRegistry.class);
+    final private ConcurrentHashMap<String, ScimConnection> connections = new ConcurrentHashMap<>();
+
+    public static ScimClientRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    public ScimConnection get(ComponentModel model) {
+        return connections.compute(model.getId(), (id, existing) -> {
+            if (existing != null && existing.hasConfig(model)) {
+                return existing;
+            }
+            if (existing != null) {
+                LOGGER.infof("Configuration of component %s changed, reconnecting", id);
+                existing.retire();
+            }
+            return new ScimConnection(model);
+        });
+    }
+
+    /**
+     * Returns a client on the connection of the component, to be closed once
+     * done with it.
+     */
+    public ScimClient getClient(ComponentModel model, KeycloakSession session) {
+        while (true) {
+            var connection = get(model);
+            // The connection may have been replaced and closed in the meantime.
+            if (connection.retain()) {
+                return new ScimClient(connection, session, true);
+            }
+        }
+    }
+
+    public void invalidate(String componentId) {
+        var existing = connections.remove(componentId);
+        if (existing != null) {
+            existing.retire();
+        }
+    }
+
+    public void close() {
+        connections.keySet().forEach(this::invalidate);
+    }
+}
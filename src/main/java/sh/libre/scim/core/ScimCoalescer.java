@@ -0,0 +1,99 @@
+package sh.libre.scim.core;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.logging.Logger;
+import org.keycloak.component.ComponentModel;
+
+/**
+ * Holds operations for a short window and collapses the ones targeting the same
+ * resource of the same component into a single operation. The window starts
+ * with the first operation on a resource, so operations on different resources
+ * keep their relative order.
+ */
+public class ScimCoalescer {
+    final private Logger LOGGER = Logger.getLogger(ScimCoalescer.class);
+    final private long windowMillis;
+    final private Sink sink;
+    final private ScheduledExecutorService scheduler;
+    final private Map<Key, Pending> pending = new ConcurrentHashMap<>();
+    final private AtomicLong coalesced = new AtomicLong();
+
+    public interface Sink {
+        void submit(String realmId, ComponentModel model, ScimOperation operation);
+    }
+
+    private record Key(String componentId, String scope, String id, String memberId) {
+    }
+
+    private record Pending(String realmId, ComponentModel model, ScimOperation operation) {
+    }
+
+    public ScimCoalescer(long windowMillis, Sink sink) {
+        this.windowMillis = windowMillis;
+        this.sink = sink;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, "scim-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void submit(String realmId, ComponentModel model, ScimOperation operation) {
+        var key = new Key(model.getId(), operation.scope(), operation.id(), operation.memberId());
+        pending.compute(key, (k, previous) -> {
+            if (previous == null) {
+                scheduler.schedule(() -> release(k), windowMillis, TimeUnit.MILLISECONDS);
+                return new Pending(realmId, model, operation);
+            }
+            coalesced.incrementAndGet();
+            var merged = merge(previous.operation(), operation);
+            LOGGER.debugf("Coalesced %s and %s into %s", previous.operation(), operation, merged);
+            return new Pending(previous.realmId(), previous.model(), merged);
+        });
+    }
+
+    /**
+     * A create followed by updates stays a create, a delete wins over anything
+     * before it, otherwise the latest operation is kept.
+     */
+    static ScimOperation merge(ScimOperation previous, ScimOperation next) {
+        if (previous.action() == ScimOperation.Action.CREATE && next.action() == ScimOperation.Action.REPLACE) {
+            return previous;
+        }
+        return next;
+    }
+
+    protected void release(Key key) {
+        var entry = pending.remove(key);
+        if (entry == null) {
+            return;
+        }
+        try {
+            sink.submit(entry.realmId(), entry.model(), entry.operation());
+        } catch (Exception e) {
+            LOGGER.errorf(e, "Failed to submit %s for component %s", entry.operation(), key.componentId());
+        }
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * Stops the timer and releases all pending operations right away.
+     */
+    public void close() {
+        scheduler.shutdownNow();
+        pending.keySet().forEach(this::release);
+    }
+}
@@ -0,0 +1,71 @@
+package sh.libre.scim.core;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import sh.libre.scim.storage.ScimStorageProviderFactory;
+
+/**
+ * Per-realm snapshot of the enabled SCIM components, split by propagation
+ * scope, so events don't walk the realm components each time. Snapshots are
+ * dropped when a SCIM component is created, updated or removed, or when the
+ * realm is removed, on every cluster node, through {@link ScimInvalidation}.
+ */
+public class ScimComponentCache {
+    private static final ScimComponentCache INSTANCE = new ScimComponentCache();
+
+    final private Map<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+    final private ScimInvalidation invalidation = ScimInvalidation.register("components",
+            (realmId, keys) -> snapshots.remove(realmId));
+
+    public record Snapshot(List<ComponentModel> users, List<ComponentModel> groups) {
+        public List<ComponentModel> forScope(String scope) {
+            switch (scope) {
+                case ScimDispatcher.SCOPE_USER:
+                    return users;
+                case ScimDispatcher.SCOPE_GROUP:
+                    return groups;
+                default:
+                    return List.of();
+            }
+        }
+
+        public boolean isEmpty() {
+            return users.isEmpty() && groups.isEmpty();
+        }
+    }
+
+    public static ScimComponentCache getInstance() {
+        return INSTANCE;
+    }
+
+    public Snapshot get(RealmModel realm) {
+        var cached = snapshots.get(realm.getId());
+        if (cached != null) {
+            return cached;
+        }
+        // Taken before loading, so an invalidation racing the load is seen.
+        var generation = invalidation.generation(realm.getId());
+        var snapshot = load(realm);
+        invalidation.publish(snapshots, realm.getId(), generation, snapshot);
+        return snapshot;
+    }
+
+    protected Snapshot load(RealmModel realm) {
+        var components = realm.getComponentsStream()
+                .filter(m -> ScimStorageProviderFactory.ID.equals(m.getProviderId()) && m.get("enabled", true))
+                .toList();
+        return new Snapshot(
+                components.stream().filter(m -> m.get("propagation-" + ScimDispatcher.SCOPE_USER, false)).toList(),
+                components.stream().filter(m -> m.get("propagation-" + ScimDispatcher.SCOPE_GROUP, false)).toList());
+    }
+
+    public void invalidate(KeycloakSession session, String realmId) {
+        invalidation.invalidate(session, realmId);
+    }
+}
@@ -0,0 +1,323 @@
+package sh.libre.scim.core;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import jakarta.ws.rs.ProcessingException;
+
+import de.captaingoldfish.scim.sdk.client.ScimClientConfig;
+import de.captaingoldfish.scim.sdk.client.ScimRequestBuilder;
+import de.captaingoldfish.scim.sdk.client.http.BasicAuth;
+import de.captaingoldfish.scim.sdk.client.response.ServerResponse;
+import de.captaingoldfish.scim.sdk.common.constants.EndpointPaths;
+import de.captaingoldfish.scim.sdk.common.resources.ServiceProviderConfig;
+
+import org.jboss.logging.Logger;
+import org.keycloak.component.ComponentModel;
+
+import com.google.common.net.HttpHeaders;
+
+import io.github.resilience4j.bulkhead.ThreadPoolBulkhead;
+import io.github.resilience4j.bulkhead.ThreadPoolBulkheadConfig;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import io.micrometer.core.instrument.Meter;
+
+/**
+ * Session independent state of a SCIM service provider: the request builder
+ * (and its underlying HTTP client), the retry policies, the circuit breaker,
+ * the rate limiter, the bulkhead and the auth headers.
+ * Instances are shared through {@link ScimClientRegistry} so connections are
+ * kept alive between events. Each {@link ScimClient} holds a reference while it
+ * is in use, and a connection retired by the registry is only closed once the
+ * last one is released.
+ */
+public class ScimConnection {
+    final protected Logger LOGGER = Logger.getLogger(ScimConnection.class);
+    final protected ScimRequestBuilder scimRequestBuilder;
+    final protected ScimRetry retry;
+    final protected String contentType;
+    final protected ComponentModel model;
+    final protected Map<String, List<String>> config;
+    final protected String scimApplicationBaseUrl;
+    final protected Map<String, String> defaultHeaders;
+    final protected Map<String, String> expectedResponseHeaders;
+    final protected ScimRateLimiter rateLimiter;
+    final protected CircuitBreaker circuitBreaker;
+    final protected ThreadPoolBulkhead bulkhead;
+    final protected List<Meter> meters;
+    private volatile BulkSettings bulkSettings;
+    private volatile boolean serviceProviderConfigLoaded;
+    // Number of clients using the connection, -1 once it is closed.
+    final private AtomicInteger users = new AtomicInteger();
+    private volatile boolean retired;
+
+    public record BulkSettings(int maxOperations, long maxPayloadSize) {
+    }
+
+    public ScimConnection(ComponentModel model) {
+        this.model = model;
+        this.config = new HashMap<>();
+        model.getConfig().forEach((key, values) -> config.put(key, values == null ? null : new ArrayList<>(values)));
+        this.contentType = model.get("content-type");
+        this.scimApplicationBaseUrl = model.get("endpoint");
+        this.defaultHeaders = new HashMap<>();
+        this.expectedResponseHeaders = new HashMap<>();
+
+        switch (model.get("auth-mode")) {
+            case "BEARER":
+                defaultHeaders.put(HttpHeaders.AUTHORIZATION,
+                    BearerAuthentication(model.get("auth-pass")));
+                break;
+            case "BASIC_AUTH":
+                defaultHeaders.put(HttpHeaders.AUTHORIZATION,
+                    BasicAuthentication(model.get("auth-user"),
+                                        model.get("auth-pass")));
+                break;
+        }
+
+        defaultHeaders.put(HttpHeaders.CONTENT_TYPE, contentType);
+
+        scimRequestBuilder = new ScimRequestBuilder(scimApplicationBaseUrl, genScimClientConfig());
+
+        retry = new ScimRetry("scim-" + model.getId());
+        rateLimiter = new ScimRateLimiter("SCIM component " + model.getId(), model.get("max-in-flight", 8),
+                model.get("rate-limit-adaptive", true));
+
+        // Connection errors and 5xx responses count as failures. Once open, calls
+        // fail fast until a few probes succeed in half-open state.
+        CircuitBreakerConfig circuitBreakerConfig = CircuitBreakerConfig.custom()
+            .failureRateThreshold(50)
+            .slidingWindowSize(20)
+            .minimumNumberOfCalls(10)
+            .permittedNumberOfCallsInHalfOpenState(3)
+            .waitDurationInOpenState(Duration.ofSeconds(Math.max(1, model.get("circuit-breaker-wait", 30))))
+            .automaticTransitionFromOpenToHalfOpenEnabled(true)
+            .recordExceptions(ProcessingException.class)
+            .recordResult(result -> result instanceof ServerResponse<?> response && response.getHttpStatus() >= 500)
+            .build();
+        circuitBreaker = CircuitBreaker.of("scim-" + model.getId(), circuitBreakerConfig);
+        circuitBreaker.getEventPublisher().onStateTransition(event -> LOGGER.warnf(
+                "SCIM circuit breaker of component %s: %s", model.getId(), event.getStateTransition()));
+
+        // Threads dedicated to this component when operations are fanned out to
+        // several components, so a slow one can't starve the others.
+        var bulkheadThreads = Math.max(1, model.get("max-in-flight", 8));
+        bulkhead = ThreadPoolBulkhead.of("scim-" + model.getId(), ThreadPoolBulkheadConfig.custom()
+            .coreThreadPoolSize(1)
+            .maxThreadPoolSize(bulkheadThreads)
+            .queueCapacity(100)
+            .build());
+
+        meters = ScimMetrics.registerConnection(this);
+    }
+
+    /**
+     * Whether the connection was built from the same configuration as the
+     * component.
+     */
+    public boolean hasConfig(ComponentModel model) {
+        return config.equals(model.getConfig());
+    }
+
+    protected String BasicAuthentication(String username, String password) {
+        return  BasicAuth.builder()
+        .username(model.get(username))
+        .password(model.get(password))
+        .build()
+        .getAuthorizationHeaderValue();
+    }
+
+    protected ScimClientConfig genScimClientConfig() {
+        return ScimClientConfig.builder()
+        .httpHeaders(defaultHeaders)
+        .connectTimeout(5)
+        .requestTimeout(5)
+        .socketTimeout(5)
+        .expectedHttpResponseHeaders(expectedResponseHeaders)
+        .hostnameVerifier((s, sslSession) -> true)
+        .build();
+    }
+
+    protected String BearerAuthentication(String token) {
+        return "Bearer " + token ;
+    }
+
+    public ComponentModel getModel() {
+        return model;
+    }
+
+    public String getBaseUrl() {
+        return scimApplicationBaseUrl;
+    }
+
+    public ScimRequestBuilder getRequestBuilder() {
+        return scimRequestBuilder;
+    }
+
+    public ScimRetry getRetry() {
+        return retry;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public ThreadPoolBulkhead getBulkhead() {
+        return bulkhead;
+    }
+
+    public ScimRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Sends a request through the rate limiter and the circuit breaker of this
+     * service provider, whatever the number of sessions using it. The slot is
+     * taken on the calling thread before entering the breaker, so waiting for
+     * it is never counted as a failure of the service provider. Throws
+     * {@link io.github.resilience4j.circuitbreaker.CallNotPermittedException}
+     * when the breaker is open.
+     *
+     * @param type      Resource type, for metrics
+     * @param operation One of the {@code ScimMetrics.OPERATION_*} names
+     */
+    public <T> T send(String type, String operation, Supplier<T> request) {
+        rateLimiter.acquire();
+        try {
+            return sendAcquired(type, operation, request);
+        } catch (CallNotPermittedException e) {
+            rateLimiter.onError(false);
+            throw e;
+        }
+    }
+
+    private <T> T sendAcquired(String type, String operation, Supplier<T> request) {
+        return circuitBreaker.executeSupplier(() -> {
+            var event = ScimEvents.RequestEvent.begin(model.getId(), scimApplicationBaseUrl, type, operation);
+            T result;
+            try {
+                result = ScimMetrics.timeRequest(model.getId(), type, operation, request);
+            } catch (ProcessingException e) {
+                rateLimiter.onError(true);
+                event.commit();
+                throw e;
+            } catch (RuntimeException e) {
+                rateLimiter.onError(false);
+                event.commit();
+                throw e;
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                if (result instanceof ServerResponse<?> response) {
+                    event.status = response.getHttpStatus();
+                    var body = response.getResponseBody();
+                    event.responseBytes = body == null ? 0 : body.getBytes(StandardCharsets.UTF_8).length;
+                }
+                event.commit();
+            }
+            if (result instanceof ServerResponse<?> response) {
+                rateLimiter.onResponse(response.getHttpStatus(), response.getHttpHeaders());
+            } else {
+                rateLimiter.onResponse(200, null);
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Returns the bulk limits advertised by the service provider in its
+     * /ServiceProviderConfig, or null when bulk is not supported.
+     */
+    public BulkSettings getBulkSettings() {
+        if (!serviceProviderConfigLoaded) {
+            synchronized (this) {
+                if (!serviceProviderConfigLoaded) {
+                    bulkSettings = loadBulkSettings();
+                    serviceProviderConfigLoaded = true;
+                }
+            }
+        }
+        return bulkSettings;
+    }
+
+    protected BulkSettings loadBulkSettings() {
+        try {
+            var response = scimRequestBuilder
+                    .get(scimApplicationBaseUrl + EndpointPaths.SERVICE_PROVIDER_CONFIG, ServiceProviderConfig.class)
+                    .sendRequest();
+            if (!response.isSuccess()) {
+                LOGGER.warnf("Could not read ServiceProviderConfig of component %s: %s", model.getId(),
+                        response.getHttpStatus());
+                return null;
+            }
+            var bulk = response.getResource().getBulkConfig();
+            if (bulk == null || !bulk.isSupported() || bulk.getMaxOperations() == null
+                    || bulk.getMaxOperations() <= 0) {
+                LOGGER.infof("Component %s does not support bulk requests", model.getId());
+                return null;
+            }
+            var maxPayloadSize = bulk.getMaxPayloadSize() == null || bulk.getMaxPayloadSize() <= 0
+                    ? Long.MAX_VALUE
+                    : bulk.getMaxPayloadSize();
+            return new BulkSettings(bulk.getMaxOperations(), maxPayloadSize);
+        } catch (Exception e) {
+            LOGGER.warnf("Could not read ServiceProviderConfig of component %s: %s", model.getId(), e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Takes a reference on the connection, returns false when it is already
+     * closed.
+     */
+    public boolean retain() {
+        while (true) {
+            var count = users.get();
+            if (count < 0) {
+                return false;
+            }
+            if (users.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        if (users.decrementAndGet() == 0 && retired) {
+            closeIfIdle();
+        }
+    }
+
+    /**
+     * Closes the connection once no client uses it anymore.
+     */
+    public void retire() {
+        retired = true;
+        closeIfIdle();
+    }
+
+    private void closeIfIdle() {
+        if (users.compareAndSet(0, -1)) {
+            close();
+        }
+    }
+
+    protected void close() {
+        LOGGER.infof("Closing SCIM connection for component %s", model.getId());
+        scimRequestBuilder.close();
+        ScimMetrics.remove(meters);
+        try {
+            bulkhead.close();
+        } catch (Exception e) {
+            LOGGER.warn(e);
+        }
+    }
+}
@@ -1,41 +1,239 @@
 package sh.libre.scim.core;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
+import java.util.stream.Stream;
+
 import org.jboss.logging.Logger;
 import org.keycloak.component.ComponentModel;
+import org.keycloak.models.AbstractKeycloakTransaction;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
 
-import sh.libre.scim.storage.ScimStorageProviderFactory;
+import io.github.resilience4j.bulkhead.BulkheadFullException;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
 
 public class ScimDispatcher {
     public static final String SCOPE_USER = "user";
     public static final String SCOPE_GROUP = "group";
 
+    public enum Mode {
+        SYNC,
+        ASYNC,
+        OUTBOX
+    }
+
     final private KeycloakSession session;
+    final private ScimClientRegistry registry;
+    final private Mode mode;
+    final private ScimAsyncExecutor executor;
+    final private long deadline;
     final private Logger LOGGER = Logger.getLogger(ScimDispatcher.class);
 
     public ScimDispatcher(KeycloakSession session) {
+        this(session, ScimClientRegistry.getInstance());
+    }
+
+    public ScimDispatcher(KeycloakSession session, ScimClientRegistry registry) {
+        this(session, registry, Mode.SYNC, null);
+    }
+
+    public ScimDispatcher(KeycloakSession session, ScimClientRegistry registry, Mode mode,
+            ScimAsyncExecutor executor) {
+        this(session, registry, mode, executor, 0);
+    }
+
+    public ScimDispatcher(KeycloakSession session, ScimClientRegistry registry, Mode mode,
+            ScimAsyncExecutor executor, long deadline) {
         this.session = session;
+        this.registry = registry;
+        this.mode = mode;
+        this.executor = executor;
+        this.deadline = deadline;
+    }
+
+    public Stream<ComponentModel> getComponents(String scope) {
+        return ScimComponentCache.getInstance().get(session.getContext().getRealm()).forScope(scope).stream();
+    }
+
+    /**
+     * Whether the current realm has any enabled SCIM component, so callers can
+     * skip loading models for events nobody propagates.
+     */
+    public boolean hasComponents() {
+        var realm = session.getContext().getRealm();
+        return realm != null && !ScimComponentCache.getInstance().get(realm).isEmpty();
+    }
+
+    /**
+     * Runs the operation against every matching component. In {@code SYNC} mode
+     * it runs right away in the current session. With a deadline, which is
+     * opt-in, and several components it is instead sent concurrently once the
+     * transaction commits (see {@link #deliverConcurrently}), so it no longer
+     * runs within the transaction nor raises its errors. In {@code ASYNC} mode it is
+     * queued once the current transaction commits and in {@code OUTBOX} mode it
+     * is written to the outbox within the current transaction. The operation is
+     * also recorded in the change log used by incremental syncs.
+     */
+    public void dispatch(ScimOperation operation) {
+        var components = getComponents(operation.scope()).toList();
+        if (components.isEmpty()) {
+            return;
+        }
+        ScimChangeLog.record(session, operation);
+        if (mode == Mode.OUTBOX) {
+            components.forEach(m -> ScimOutboxPoller.enqueue(session, m.getId(), operation));
+            return;
+        }
+        if (mode == Mode.SYNC || executor == null) {
+            if (components.size() > 1 && deadline > 0) {
+                deliverConcurrently(components, operation);
+            } else {
+                components.forEach(m -> deliver(m, operation));
+            }
+            return;
+        }
+        var realmId = session.getContext().getRealm().getId();
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                components.forEach(m -> executor.submit(realmId, m, operation));
+            }
+
+            @Override
+            protected void rollbackImpl() {
+                LOGGER.debugf("Transaction rolled back, dropping %s", operation);
+            }
+        });
+    }
+
+    /**
+     * Sends the operation to all components at the same time once the current
+     * transaction commits, each one in its own session on the bulkhead of the
+     * component, and waits up to {@code deadline} ms for all of them. Slower
+     * components finish in the background; a component whose bulkhead is full
+     * gets the operation through the outbox.
+     */
+    protected void deliverConcurrently(List<ComponentModel> components, ScimOperation operation) {
+        var realmId = session.getContext().getRealm().getId();
+        var sessionFactory = session.getKeycloakSessionFactory();
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                var futures = components.stream()
+                        .map(m -> submit(sessionFactory, realmId, m, operation))
+                        .toArray(CompletableFuture[]::new);
+                try {
+                    CompletableFuture.allOf(futures).get(deadline, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    LOGGER.warnf("%s not done after %d ms, finishing in the background", operation, deadline);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    LOGGER.error(e.getCause());
+                }
+            }
+
+            @Override
+            protected void rollbackImpl() {
+                LOGGER.debugf("Transaction rolled back, dropping %s", operation);
+            }
+        });
+    }
+
+    private CompletableFuture<Void> submit(KeycloakSessionFactory sessionFactory, String realmId,
+            ComponentModel m, ScimOperation operation) {
+        try {
+            return registry.get(m).getBulkhead()
+                    .executeRunnable(() -> KeycloakModelUtils.runJobInTransaction(sessionFactory, s -> {
+                        s.getContext().setRealm(s.realms().getRealm(realmId));
+                        new ScimDispatcher(s, registry).deliver(m, operation);
+                    }))
+                    .toCompletableFuture();
+        } catch (BulkheadFullException e) {
+            LOGGER.warnf("Bulkhead of component %s is full, deferring %s", m.getId(), operation);
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, s -> {
+                s.getContext().setRealm(s.realms().getRealm(realmId));
+                ScimOutboxPoller.enqueue(s, m.getId(), operation);
+            });
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * Replaces every member of a group, e.g. after a role was mapped to it. In
+     * {@code SYNC} mode this happens right away, one user at a time. Otherwise a
+     * fan-out entry per component is written to the outbox within the current
+     * transaction, to be expanded by the outbox poller (see
+     * {@link ScimGroupFanOut}).
+     */
+    public void dispatchGroupMembers(String groupId) {
+        var components = getComponents(SCOPE_USER).toList();
+        if (components.isEmpty()) {
+            return;
+        }
+        if (mode == Mode.SYNC) {
+            var realm = session.getContext().getRealm();
+            var group = session.groups().getGroupById(realm, groupId);
+            if (group == null) {
+                return;
+            }
+            session.users().getGroupMembersStream(realm, group)
+                    .forEach(user -> dispatch(ScimOperation.replace(SCOPE_USER, user.getId())));
+            return;
+        }
+        var operation = ScimOperation.replaceMembers(groupId);
+        components.forEach(m -> ScimOutboxPoller.enqueue(session, m.getId(), operation));
+    }
+
+    /**
+     * Runs the operation against one component, in a single attempt. When its
+     * circuit breaker is open or the attempt failed in a retryable way, the
+     * operation is written to the outbox instead, to be retried with backoff
+     * without holding up the current thread.
+     *
+     * @return false when the operation failed and was neither sent nor deferred
+     */
+    public boolean deliver(ComponentModel m, ScimOperation operation) {
+        return runOne(m, client -> {
+            try {
+                client.execute(operation);
+            } catch (CallNotPermittedException e) {
+                LOGGER.warnf("Circuit breaker of component %s is open, deferring %s", m.getId(), operation);
+                ScimOutboxPoller.enqueue(session, m.getId(), operation);
+            } catch (RuntimeException e) {
+                if (!ScimRetry.isRetryable(e)) {
+                    throw e;
+                }
+                LOGGER.warnf("Component %s is unavailable, deferring %s: %s", m.getId(), operation, e.getMessage());
+                ScimOutboxPoller.enqueue(session, m.getId(), operation);
+            }
+        });
     }
 
     public void run(String scope, Consumer<ScimClient> f) {
-        session.getContext().getRealm().getComponentsStream()
-                .filter(m -> {
-                    return ScimStorageProviderFactory.ID.equals(m.getProviderId()) && m.get("enabled", true)
-                            && m.get("propagation-" + scope, false);
-                })
-                .forEach(m -> runOne(m, f));
+        getComponents(scope).forEach(m -> runOne(m, f));
     }
 
-    public void runOne(ComponentModel m, Consumer<ScimClient> f) {
+    /**
+     * Runs {@code f} with a client of the component. Failures are logged, not
+     * thrown.
+     *
+     * @return whether {@code f} completed without failing
+     */
+    public boolean runOne(ComponentModel m, Consumer<ScimClient> f) {
         LOGGER.infof("%s %s %s %s", m.getId(), m.getName(), m.getProviderId(), m.getProviderType());
-        var client = new ScimClient(m, session);
-        try {
+        try (var client = registry.getClient(m, session)) {
             f.accept(client);
+            return true;
         } catch (Exception e) {
             LOGGER.error(e);
-        } finally {
-            client.close();
+            return false;
         }
     }
 }
@@ -0,0 +1,181 @@
+package sh.libre.scim.core;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events of the extension. They cost next to nothing
+ * when no recording is running, and show up under the "SCIM" category of a
+ * recording ({@code jcmd <pid> JFR.start}) to see where a slow sync spends its
+ * time.
+ */
+public class ScimEvents {
+    public static final String APPLY_MODEL = "apply(model)";
+    public static final String APPLY_RESOURCE = "apply(resource)";
+    public static final String TO_SCIM = "toSCIM";
+    public static final String TO_PATCH_BUILDER = "toPatchBuilder";
+
+    public static final String PHASE_LIST = "list";
+    public static final String PHASE_RECONCILE = "reconcile";
+    public static final String PHASE_FLUSH = "flush";
+    public static final String PHASE_BULK_FLUSH = "bulk-flush";
+    public static final String PHASE_REFRESH = "refresh";
+
+    private ScimEvents() {
+    }
+
+    @Name("sh.libre.scim.Request")
+    @Label("SCIM Request")
+    @Category({ "Keycloak", "SCIM" })
+    @Description("HTTP request sent to a SCIM service provider")
+    @StackTrace(false)
+    public static class RequestEvent extends Event {
+        @Label("Component")
+        public String component;
+
+        @Label("Endpoint")
+        public String endpoint;
+
+        @Label("Resource Type")
+        public String resourceType;
+
+        @Label("Operation")
+        public String operation;
+
+        @Label("Status")
+        @Description("HTTP status, -1 when no response was received")
+        public int status = -1;
+
+        @Label("Response Size")
+        @DataAmount
+        public long responseBytes;
+
+        public static RequestEvent begin(String component, String endpoint, String resourceType, String operation) {
+            var event = new RequestEvent();
+            event.component = component;
+            event.endpoint = endpoint;
+            event.resourceType = resourceType;
+            event.operation = operation;
+            event.begin();
+            return event;
+        }
+    }
+
+    @Name("sh.libre.scim.Conversion")
+    @Label("SCIM Conversion")
+    @Category({ "Keycloak", "SCIM" })
+    @Description("Conversion between a Keycloak model and its SCIM representation")
+    @StackTrace(false)
+    public static class ConversionEvent extends Event {
+        @Label("Component")
+        public String component;
+
+        @Label("Resource Type")
+        public String resourceType;
+
+        @Label("Conversion")
+        public String conversion;
+
+        @Label("Resource Id")
+        public String resourceId;
+
+        public static ConversionEvent begin(String component, String resourceType, String conversion) {
+            var event = new ConversionEvent();
+            event.component = component;
+            event.resourceType = resourceType;
+            event.conversion = conversion;
+            event.begin();
+            return event;
+        }
+
+        public void end(String resourceId) {
+            end();
+            if (shouldCommit()) {
+                this.resourceId = resourceId;
+                commit();
+            }
+        }
+    }
+
+    @Name("sh.libre.scim.MappingQuery")
+    @Label("SCIM Mapping Query")
+    @Category({ "Keycloak", "SCIM" })
+    @Description("Database lookup of SCIM resource mappings")
+    @StackTrace(false)
+    public static class MappingQueryEvent extends Event {
+        @Label("Component")
+        public String component;
+
+        @Label("Resource Type")
+        public String resourceType;
+
+        @Label("Query")
+        public String query;
+
+        @Label("Parameters")
+        @Description("Number of ids looked up")
+        public int parameters;
+
+        @Label("Results")
+        public int results;
+
+        public static MappingQueryEvent begin(String component, String resourceType, String query, int parameters) {
+            var event = new MappingQueryEvent();
+            event.component = component;
+            event.resourceType = resourceType;
+            event.query = query;
+            event.parameters = parameters;
+            event.begin();
+            return event;
+        }
+
+        public void end(int results) {
+            end();
+            if (shouldCommit()) {
+                this.results = results;
+                commit();
+            }
+        }
+    }
+
+    @Name("sh.libre.scim.SyncPhase")
+    @Label("SCIM Sync Phase")
+    @Category({ "Keycloak", "SCIM" })
+    @Description("Phase of a sync: listing or reconciling a page, flushing mappings or a bulk request, refreshing")
+    @StackTrace(false)
+    public static class SyncPhaseEvent extends Event {
+        @Label("Component")
+        public String component;
+
+        @Label("Resource Type")
+        public String resourceType;
+
+        @Label("Phase")
+        public String phase;
+
+        @Label("Resources")
+        public long resources;
+
+        public static SyncPhaseEvent begin(String component, String resourceType, String phase) {
+            var event = new SyncPhaseEvent();
+            event.component = component;
+            event.resourceType = resourceType;
+            event.phase = phase;
+            event.begin();
+            return event;
+        }
+
+        public void end(long resources) {
+            end();
+            if (shouldCommit()) {
+                this.resources = resources;
+                commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package sh.libre.scim.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Expands the outbox entries replacing every member of a group (e.g. after a
+ * role was mapped to the group) for one component. Members are read page by
+ * page and each page is split across a bounded pool of workers. A worker handles
+ * its slice in one session: in outbox mode it writes one outbox entry per
+ * member, otherwise it sends the replaces and defers those that fail to the
+ * outbox. The fan-out entry itself is only removed once every page was handled,
+ * so an interrupted fan-out starts over.
+ */
+public class ScimGroupFanOut {
+    final private Logger LOGGER = Logger.getLogger(ScimGroupFanOut.class);
+    final private KeycloakSessionFactory sessionFactory;
+    final private ScimClientRegistry registry;
+    final private int pageSize;
+    final private int parallelism;
+    final private boolean outbox;
+    final private ThreadPoolExecutor workers;
+
+    final private AtomicInteger running = new AtomicInteger();
+    final private AtomicLong processed = new AtomicLong();
+    final private AtomicLong failed = new AtomicLong();
+
+    public ScimGroupFanOut(KeycloakSessionFactory sessionFactory, ScimClientRegistry registry, int pageSize,
+            int parallelism, boolean outbox) {
+        this.sessionFactory = sessionFactory;
+        this.registry = registry;
+        this.pageSize = Math.max(1, pageSize);
+        this.parallelism = Math.max(1, parallelism);
+        this.outbox = outbox;
+        var threadCount = new AtomicInteger();
+        // A page never has more slices than workers, the queue only absorbs overlapping fan-outs.
+        this.workers = new ThreadPoolExecutor(this.parallelism, this.parallelism, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(this.parallelism), r -> {
+                    var thread = new Thread(r, "scim-fanout-worker-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Replaces every member of the group on the component. Throws when a slice
+     * of members could not be handled, so the outbox entry is retried.
+     */
+    public void run(String realmId, String componentId, String groupId) {
+        running.incrementAndGet();
+        var jobProcessed = new AtomicLong();
+        var jobFailed = new AtomicLong();
+        var started = System.currentTimeMillis();
+        try {
+            int first = 0;
+            while (true) {
+                var page = readPage(realmId, groupId, first);
+                if (page.isEmpty()) {
+                    break;
+                }
+                var sliceSize = (page.size() + parallelism - 1) / parallelism;
+                var slices = new ArrayList<CompletableFuture<Void>>();
+                for (int i = 0; i < page.size(); i += sliceSize) {
+                    var slice = page.subList(i, Math.min(i + sliceSize, page.size()));
+                    slices.add(CompletableFuture.runAsync(
+                            () -> runSlice(realmId, componentId, slice, jobProcessed, jobFailed), workers));
+                }
+                CompletableFuture.allOf(slices.toArray(CompletableFuture[]::new)).join();
+                LOGGER.infof("Group %s fan-out to component %s: %d members processed, %d deferred", groupId,
+                        componentId, jobProcessed.get(), jobFailed.get());
+                if (page.size() < pageSize) {
+                    break;
+                }
+                first += pageSize;
+            }
+        } finally {
+            running.decrementAndGet();
+            LOGGER.infof("Group %s fan-out to component %s done in %d ms: %d members processed, %d deferred",
+                    groupId, componentId, System.currentTimeMillis() - started, jobProcessed.get(), jobFailed.get());
+        }
+    }
+
+    protected List<String> readPage(String realmId, String groupId, int first) {
+        var page = new ArrayList<String>();
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            var realm = session.realms().getRealm(realmId);
+            var group = realm == null ? null : session.groups().getGroupById(realm, groupId);
+            if (group == null) {
+                return;
+            }
+            session.users().getGroupMembersStream(realm, group, first, pageSize)
+                    .forEach(user -> page.add(user.getId()));
+        });
+        return page;
+    }
+
+    protected void runSlice(String realmId, String componentId, List<String> userIds, AtomicLong jobProcessed,
+            AtomicLong jobFailed) {
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            var realm = session.realms().getRealm(realmId);
+            var model = realm == null ? null : realm.getComponent(componentId);
+            if (model == null) {
+                return;
+            }
+            session.getContext().setRealm(realm);
+            try (var client = outbox ? null : registry.getClient(model, session)) {
+                for (var userId : userIds) {
+                    var operation = ScimOperation.replace(ScimDispatcher.SCOPE_USER, userId);
+                    ScimChangeLog.record(session, operation);
+                    if (client == null) {
+                        ScimOutboxPoller.enqueue(session, componentId, operation);
+                    } else {
+                        send(session, client, operation, jobFailed);
+                    }
+                    jobProcessed.incrementAndGet();
+                    processed.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    private void send(KeycloakSession session, ScimClient client, ScimOperation operation, AtomicLong jobFailed) {
+        try {
+            client.execute(operation);
+        } catch (Exception e) {
+            LOGGER.warnf("Failed to send %s to component %s, deferring it: %s", operation, client.getModel().getId(),
+                    e.getMessage());
+            ScimOutboxPoller.enqueue(session, client.getModel().getId(), operation);
+            jobFailed.incrementAndGet();
+            failed.incrementAndGet();
+        }
+    }
+
+    public int getRunningJobs() {
+        return running.get();
+    }
+
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public void close() {
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(30, TimeUnit.SECONDS)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package sh.libre.scim.core;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.keycloak.cluster.ClusterEvent;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+
+/**
+ * Invalidation shared by the caches of the extension. Each cache registers
+ * under a name with the callback dropping what it holds for a realm, or only
+ * some keys of it, and all of them go through a single cluster event. Every
+ * drop bumps the generation of the realm in that cache, so a value loaded
+ * before an invalidation is never stored after it.
+ */
+public class ScimInvalidation {
+    public static final String CLUSTER_TASK_KEY = "scim-invalidation";
+
+    private static final Map<String, ScimInvalidation> CACHES = new ConcurrentHashMap<>();
+
+    final private String cache;
+    final private Dropper dropper;
+    final private Map<String, AtomicLong> generations = new ConcurrentHashMap<>();
+
+    public interface Dropper {
+        /**
+         * Drops the given keys of the realm, or all of it when {@code keys} is
+         * null.
+         */
+        void drop(String realmId, List<? extends Serializable> keys);
+    }
+
+    /**
+     * Invalidation of a realm, or of some keys of it, in one cache or, when
+     * {@code cache} is null, in all of them.
+     */
+    public static class InvalidationEvent implements ClusterEvent {
+        private final String cache;
+        private final String realmId;
+        private final List<? extends Serializable> keys;
+
+        private InvalidationEvent(String cache, String realmId, List<? extends Serializable> keys) {
+            this.cache = cache;
+            this.realmId = realmId;
+            this.keys = keys;
+        }
+    }
+
+    private ScimInvalidation(String cache, Dropper dropper) {
+        this.cache = cache;
+        this.dropper = dropper;
+    }
+
+    /**
+     * Registers a cache, replacing any cache registered under the same name.
+     */
+    public static ScimInvalidation register(String cache, Dropper dropper) {
+        var invalidation = new ScimInvalidation(cache, dropper);
+        CACHES.put(cache, invalidation);
+        return invalidation;
+    }
+
+    public static void registerClusterListener(KeycloakSession session) {
+        var cluster = session.getProvider(ClusterProvider.class);
+        if (cluster == null) {
+            return;
+        }
+        cluster.registerListener(CLUSTER_TASK_KEY, event -> {
+            if (event instanceof InvalidationEvent e) {
+                if (e.cache == null) {
+                    CACHES.values().forEach(c -> c.drop(e.realmId, null));
+                    return;
+                }
+                var invalidation = CACHES.get(e.cache);
+                if (invalidation != null) {
+                    invalidation.drop(e.realmId, e.keys);
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops the realm from every cache now and once the transaction completes,
+     * then on the other nodes if it committed.
+     */
+    public static void invalidateRealm(KeycloakSession session, String realmId) {
+        CACHES.values().forEach(c -> c.drop(realmId, null));
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                CACHES.values().forEach(c -> c.drop(realmId, null));
+                send(session, new InvalidationEvent(null, realmId, null));
+            }
+
+            @Override
+            protected void rollbackImpl() {
+                CACHES.values().forEach(c -> c.drop(realmId, null));
+            }
+        });
+    }
+
+    /**
+     * Drops the realm from this cache now and once the transaction completes,
+     * then on the other nodes if it committed.
+     */
+    public void invalidate(KeycloakSession session, String realmId) {
+        drop(realmId, null);
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                drop(realmId, null);
+                send(session, new InvalidationEvent(cache, realmId, null));
+            }
+
+            @Override
+            protected void rollbackImpl() {
+                drop(realmId, null);
+            }
+        });
+    }
+
+    /**
+     * Drops the keys on the other nodes, the cache already dropped them here.
+     */
+    public void notifyCluster(KeycloakSession session, String realmId, List<? extends Serializable> keys) {
+        send(session, new InvalidationEvent(cache, realmId, List.copyOf(keys)));
+    }
+
+    /**
+     * Generation of the realm in this cache, to take before loading a value
+     * that is then stored with {@link #publish}.
+     */
+    public long generation(String realmId) {
+        var generation = generations.get(realmId);
+        return generation == null ? 0 : generation.get();
+    }
+
+    /**
+     * Stores a value loaded for the realm unless the realm was invalidated
+     * since {@code generation} was taken. The generation is checked again once
+     * the value is stored, as an invalidation may have run in between.
+     */
+    public <V> void publish(Map<String, V> values, String realmId, long generation, V value) {
+        if (generation(realmId) != generation) {
+            return;
+        }
+        if (values.putIfAbsent(realmId, value) == null && generation(realmId) != generation) {
+            values.remove(realmId, value);
+        }
+    }
+
+    private void drop(String realmId, List<? extends Serializable> keys) {
+        generations.computeIfAbsent(realmId, id -> new AtomicLong()).incrementAndGet();
+        dropper.drop(realmId, keys);
+    }
+
+    private static void send(KeycloakSession session, InvalidationEvent event) {
+        var cluster = session.getProvider(ClusterProvider.class);
+        if (cluster != null) {
+            cluster.notify(CLUSTER_TASK_KEY, event, true, ClusterProvider.DCNotify.ALL_DCS);
+        }
+    }
+}
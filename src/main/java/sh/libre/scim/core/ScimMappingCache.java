@@ -0,0 +1,302 @@
+package sh.libre.scim.core;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Collectors;
+
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import sh.libre.scim.jpa.ScimResource;
+
+/**
+ * Bounded cache of {@link ScimResource} mappings, looked up either by Keycloak
+ * id or by SCIM id. Mappings read within a transaction are only shared once it
+ * committed, so rows it wrote and may roll back are never cached. Updates and
+ * deletions invalidate the entry locally right away, again once the
+ * transaction completes, and on the other cluster nodes through
+ * {@link ScimInvalidation} once per committed transaction. Inserts need no
+ * invalidation: nothing can be cached yet for a mapping that did not exist.
+ * Every invalidation bumps the generation of the key, and a read is only
+ * shared if the generation of the key it was looked up by did not change since
+ * the cache missed, so a transaction committing after a concurrent update
+ * never brings back the mapping it read before.
+ */
+public class ScimMappingCache {
+    private static final String CHANGES_ATTRIBUTE = ScimMappingCache.class.getName() + ".changes";
+    // Generations are tracked per stripe of keys, a collision only skips caching a read.
+    private static final int GENERATION_STRIPES = 4096;
+
+    private static volatile ScimMappingCache instance = new ScimMappingCache(10000, 300);
+    private static final ScimInvalidation INVALIDATION = ScimInvalidation.register("mappings",
+            (realmId, keys) -> instance.drop(realmId, keys));
+
+    final private Cache<Key, ScimResource> cache;
+    final private long maximumSize;
+    final private AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+    private record Key(boolean external, String realmId, String componentId, String type, String value)
+            implements Serializable {
+    }
+
+    /**
+     * A mapping read by a transaction, along with the key it was looked up by
+     * and the generation of that key before the lookup.
+     */
+    private record Read(ScimResource mapping, Key guard, long generation) {
+    }
+
+    /**
+     * Mappings read and written by one transaction, applied to the cache once it
+     * completes.
+     */
+    private class Changes extends AbstractKeycloakTransaction {
+        final private KeycloakSession session;
+        final private Map<Key, Long> misses = new HashMap<>();
+        final private Map<Key, Read> read = new HashMap<>();
+        final private Set<Key> written = new HashSet<>();
+        final private List<Key> invalidated = new ArrayList<>();
+
+        Changes(KeycloakSession session) {
+            this.session = session;
+        }
+
+        void read(ScimResource mapping) {
+            // Past the cache size, the oldest reads would be evicted anyway.
+            if (read.size() >= maximumSize * 2) {
+                return;
+            }
+            var keys = keys(mapping);
+            // An update invalidates all the keys of a mapping, guarding one of them is enough.
+            var guard = keys.stream().filter(misses::containsKey).findFirst().orElse(keys.get(0));
+            var generation = misses.containsKey(guard) ? misses.get(guard) : generation(guard);
+            for (var key : keys) {
+                if (!written.contains(key)) {
+                    read.putIfAbsent(key, new Read(mapping, guard, generation));
+                }
+            }
+        }
+
+        void missed(Key key, long generation) {
+            if (misses.size() < maximumSize * 2) {
+                misses.putIfAbsent(key, generation);
+            }
+        }
+
+        void written(List<Key> keys) {
+            keys.forEach(read::remove);
+            written.addAll(keys);
+        }
+
+        @Override
+        protected void commitImpl() {
+            session.removeAttribute(CHANGES_ATTRIBUTE);
+            invalidateAll(invalidated);
+            read.forEach(ScimMappingCache.this::publish);
+            notifyCluster(session, invalidated);
+        }
+
+        @Override
+        protected void rollbackImpl() {
+            session.removeAttribute(CHANGES_ATTRIBUTE);
+            invalidateAll(invalidated);
+        }
+    }
+
+    public ScimMappingCache(long maximumSize, long ttlSeconds) {
+        this.maximumSize = maximumSize;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+
+    public static ScimMappingCache getInstance() {
+        return instance;
+    }
+
+    public static void configure(long maximumSize, long ttlSeconds) {
+        instance = new ScimMappingCache(maximumSize, ttlSeconds);
+    }
+
+    public ScimResource getById(KeycloakSession session, String realmId, String componentId, String type,
+            String id) {
+        return get(session, new Key(false, realmId, componentId, type, id));
+    }
+
+    public ScimResource getByExternalId(KeycloakSession session, String realmId, String componentId, String type,
+            String externalId) {
+        return get(session, new Key(true, realmId, componentId, type, externalId));
+    }
+
+    private ScimResource get(KeycloakSession session, Key key) {
+        var changes = changes(session, false);
+        if (changes != null) {
+            if (changes.written.contains(key)) {
+                return null;
+            }
+            var read = changes.read.get(key);
+            if (read != null) {
+                return copy(read.mapping());
+            }
+        }
+        // Taken before the lookup, so an invalidation racing the database read is seen.
+        var generation = generation(key);
+        var cached = cache.getIfPresent(key);
+        if (cached == null && session.getTransactionManager().isActive()) {
+            changes(session, true).missed(key, generation);
+        }
+        return copy(cached);
+    }
+
+    /**
+     * Caches a mapping read from the database, once the current transaction
+     * commits when there is one.
+     */
+    public void put(KeycloakSession session, ScimResource mapping) {
+        var value = copy(mapping);
+        var changes = changes(session, true);
+        if (changes != null) {
+            changes.read(value);
+        } else {
+            keys(value).forEach(key -> cache.put(key, value));
+        }
+    }
+
+    /**
+     * Records a new mapping written by the current transaction, so reads of it
+     * are not cached before it commits.
+     */
+    public void inserted(KeycloakSession session, String realmId, String componentId, String type, String id,
+            String externalId) {
+        var changes = changes(session, true);
+        if (changes != null) {
+            changes.written(keys(realmId, componentId, type, id, externalId));
+        }
+    }
+
+    public void invalidate(KeycloakSession session, String realmId, String componentId, String type, String id,
+            String externalId) {
+        var keys = keys(realmId, componentId, type, id, externalId);
+        invalidateAll(keys);
+        var changes = changes(session, true);
+        if (changes != null) {
+            changes.written(keys);
+            changes.invalidated.addAll(keys);
+            return;
+        }
+        notifyCluster(session, keys);
+    }
+
+    private long generation(Key key) {
+        return generations.get(key.hashCode() & (GENERATION_STRIPES - 1));
+    }
+
+    private void invalidateAll(List<Key> keys) {
+        keys.forEach(key -> generations.incrementAndGet(key.hashCode() & (GENERATION_STRIPES - 1)));
+        cache.invalidateAll(keys);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void drop(String realmId, List<? extends Serializable> keys) {
+        if (keys != null) {
+            invalidateAll((List<Key>) keys);
+            return;
+        }
+        for (int i = 0; i < GENERATION_STRIPES; i++) {
+            generations.incrementAndGet(i);
+        }
+        cache.asMap().keySet().removeIf(key -> key.realmId().equals(realmId));
+    }
+
+    private static void notifyCluster(KeycloakSession session, List<Key> keys) {
+        keys.stream().collect(Collectors.groupingBy(Key::realmId))
+                .forEach((realmId, realmKeys) -> INVALIDATION.notifyCluster(session, realmId, realmKeys));
+    }
+
+    /**
+     * Caches a mapping read by a committed transaction unless it was
+     * invalidated since. The generation is checked again once the mapping is
+     * cached, as an invalidation may have run in between.
+     */
+    private void publish(Key key, Read read) {
+        if (generation(read.guard()) != read.generation()) {
+            return;
+        }
+        var map = cache.asMap();
+        if (map.putIfAbsent(key, read.mapping()) == null && generation(read.guard()) != read.generation()) {
+            map.remove(key, read.mapping());
+        }
+    }
+
+    /**
+     * Changes of the current transaction of the session, null outside of a
+     * transaction.
+     */
+    private Changes changes(KeycloakSession session, boolean create) {
+        var transaction = session.getTransactionManager();
+        if (!transaction.isActive()) {
+            return null;
+        }
+        var changes = session.getAttribute(CHANGES_ATTRIBUTE, Changes.class);
+        if (changes == null && create) {
+            changes = new Changes(session);
+            session.setAttribute(CHANGES_ATTRIBUTE, changes);
+            transaction.enlistAfterCompletion(changes);
+        }
+        return changes;
+    }
+
+    private static List<Key> keys(ScimResource mapping) {
+        return keys(mapping.getRealmId(), mapping.getComponentId(), mapping.getType(), mapping.getId(),
+                mapping.getExternalId());
+    }
+
+    private static List<Key> keys(String realmId, String componentId, String type, String id, String externalId) {
+        var keys = new ArrayList<Key>(2);
+        if (id != null) {
+            keys.add(new Key(false, realmId, componentId, type, id));
+        }
+        if (externalId != null) {
+            keys.add(new Key(true, realmId, componentId, type, externalId));
+        }
+        return keys;
+    }
+
+    public long getHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    public long getMissCount() {
+        return cache.stats().missCount();
+    }
+
+    public long getSize() {
+        return cache.size();
+    }
+
+    private static ScimResource copy(ScimResource mapping) {
+        if (mapping == null) {
+            return null;
+        }
+        var copy = new ScimResource();
+        copy.setId(mapping.getId());
+        copy.setExternalId(mapping.getExternalId());
+        copy.setRealmId(mapping.getRealmId());
+        copy.setComponentId(mapping.getComponentId());
+        copy.setType(mapping.getType());
+        copy.setFingerprint(mapping.getFingerprint());
+        return copy;
+    }
+}
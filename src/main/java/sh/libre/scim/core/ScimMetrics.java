@@ -0,0 +1,141 @@
+package sh.libre.scim.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import de.captaingoldfish.scim.sdk.client.response.ServerResponse;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * SCIM meters, registered in the Micrometer global registry so they are
+ * exposed by the Keycloak metrics endpoint ({@code --metrics-enabled=true}).
+ */
+public class ScimMetrics {
+    public static final String OPERATION_CREATE = "create";
+    public static final String OPERATION_REPLACE = "replace";
+    public static final String OPERATION_PATCH = "patch";
+    public static final String OPERATION_DELETE = "delete";
+    public static final String OPERATION_LIST = "list";
+    public static final String OPERATION_BULK = "bulk";
+
+    private ScimMetrics() {
+    }
+
+    private static MeterRegistry registry() {
+        return Metrics.globalRegistry;
+    }
+
+    /**
+     * Times a request to a service provider, tagged with the HTTP status of the
+     * response or the name of the exception thrown.
+     */
+    public static <T> T timeRequest(String componentId, String type, String operation, Supplier<T> request) {
+        var start = System.nanoTime();
+        var status = "error";
+        try {
+            var result = request.get();
+            if (result instanceof ServerResponse<?> response) {
+                status = String.valueOf(response.getHttpStatus());
+            }
+            return result;
+        } catch (RuntimeException e) {
+            status = e.getClass().getSimpleName();
+            throw e;
+        } finally {
+            Timer.builder("scim.requests")
+                    .description("Requests sent to SCIM service providers")
+                    .tags("component", componentId, "type", type, "operation", operation, "status", status)
+                    .publishPercentileHistogram()
+                    .register(registry())
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public static void recordSync(String componentId, String type, long nanos) {
+        Timer.builder("scim.sync.duration")
+                .description("Duration of full and changed-only syncs")
+                .tags("component", componentId, "type", type)
+                .register(registry())
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Registers the gauges of a connection. The returned meters are removed
+     * with {@link #remove(List)} when the connection is closed.
+     */
+    public static List<Meter> registerConnection(ScimConnection connection) {
+        var componentId = connection.getModel().getId();
+        var meters = new ArrayList<Meter>();
+        var limiter = connection.getRateLimiter();
+        meters.add(Gauge.builder("scim.ratelimit.limit", limiter, ScimRateLimiter::getLimit)
+                .description("Current concurrency limit towards the service provider")
+                .tag("component", componentId)
+                .register(registry()));
+        meters.add(Gauge.builder("scim.ratelimit.inflight", limiter, ScimRateLimiter::getInFlight)
+                .description("Requests in flight towards the service provider")
+                .tag("component", componentId)
+                .register(registry()));
+        meters.add(FunctionCounter.builder("scim.ratelimit.throttled", limiter, ScimRateLimiter::getThrottledCount)
+                .description("429 and 503 responses received")
+                .tag("component", componentId)
+                .register(registry()));
+        meters.add(Gauge.builder("scim.circuitbreaker.state", connection.getCircuitBreaker(),
+                        c -> c.getState().getOrder())
+                .description("Circuit breaker state (0 closed, 1 open, 2 half open...)")
+                .tag("component", componentId)
+                .register(registry()));
+        var retry = connection.getRetry();
+        for (var operation : ScimRetry.Operation.values()) {
+            meters.add(FunctionCounter.builder("scim.retries", retry, r -> r.getRetryCount(operation))
+                    .description("Retried requests")
+                    .tags("component", componentId, "operation", operation.name().toLowerCase())
+                    .register(registry()));
+        }
+        return meters;
+    }
+
+    public static List<Meter> registerExecutor(ScimAsyncExecutor executor) {
+        var meters = new ArrayList<Meter>();
+        meters.add(Gauge.builder("scim.queue.depth", executor, ScimAsyncExecutor::getQueueDepth)
+                .description("Operations waiting for an async worker")
+                .register(registry()));
+        meters.add(Gauge.builder("scim.queue.active", executor, ScimAsyncExecutor::getActiveCount)
+                .description("Async workers running an operation")
+                .register(registry()));
+        meters.add(FunctionCounter.builder("scim.queue.rejected", executor, ScimAsyncExecutor::getRejected)
+                .description("Operations rejected by a full queue")
+                .register(registry()));
+        meters.add(FunctionCounter.builder("scim.queue.failed", executor, ScimAsyncExecutor::getFailed)
+                .description("Operations that failed without being deferred to the outbox")
+                .register(registry()));
+        meters.add(FunctionCounter.builder("scim.queue.coalesced", executor, ScimAsyncExecutor::getCoalesced)
+                .description("Operations merged into a pending one")
+                .register(registry()));
+        return meters;
+    }
+
+    public static List<Meter> registerMappingCache(ScimMappingCache cache) {
+        var meters = new ArrayList<Meter>();
+        meters.add(FunctionCounter.builder("scim.mapping.cache", cache, ScimMappingCache::getHitCount)
+                .description("Mapping lookups served by the cache")
+                .tag("result", "hit")
+                .register(registry()));
+        meters.add(FunctionCounter.builder("scim.mapping.cache", cache, ScimMappingCache::getMissCount)
+                .description("Mapping lookups served by the cache")
+                .tag("result", "miss")
+                .register(registry()));
+        return meters;
+    }
+
+    public static void remove(List<Meter> meters) {
+        meters.forEach(registry()::remove);
+    }
+}
@@ -0,0 +1,48 @@
+package sh.libre.scim.core;
+
+/**
+ * A SCIM operation captured from an event. Only ids are kept so the operation
+ * can be replayed later in another {@link org.keycloak.models.KeycloakSession}.
+ * Membership operations carry the id of the user joining or leaving the group.
+ * {@code REPLACE_MEMBERS} replaces every member of a group and is only used in
+ * the outbox, where {@link ScimGroupFanOut} expands it.
+ */
+public record ScimOperation(String scope, Action action, String id, String memberId) {
+
+    public enum Action {
+        CREATE,
+        REPLACE,
+        DELETE,
+        ADD_MEMBER,
+        REMOVE_MEMBER,
+        REPLACE_MEMBERS
+    }
+
+    public ScimOperation(String scope, Action action, String id) {
+        this(scope, action, id, null);
+    }
+
+    public static ScimOperation create(String scope, String id) {
+        return new ScimOperation(scope, Action.CREATE, id);
+    }
+
+    public static ScimOperation replace(String scope, String id) {
+        return new ScimOperation(scope, Action.REPLACE, id);
+    }
+
+    public static ScimOperation delete(String scope, String id) {
+        return new ScimOperation(scope, Action.DELETE, id);
+    }
+
+    public static ScimOperation addMember(String groupId, String userId) {
+        return new ScimOperation(ScimDispatcher.SCOPE_GROUP, Action.ADD_MEMBER, groupId, userId);
+    }
+
+    public static ScimOperation removeMember(String groupId, String userId) {
+        return new ScimOperation(ScimDispatcher.SCOPE_GROUP, Action.REMOVE_MEMBER, groupId, userId);
+    }
+
+    public static ScimOperation replaceMembers(String groupId) {
+        return new ScimOperation(ScimDispatcher.SCOPE_USER, Action.REPLACE_MEMBERS, groupId);
+    }
+}
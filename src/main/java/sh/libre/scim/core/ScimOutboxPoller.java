@@ -0,0 +1,154 @@
+package sh.libre.scim.core;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jakarta.persistence.EntityManager;
+
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakSessionTask;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.timer.ScheduledTask;
+
+import sh.libre.scim.jpa.ScimOutbox;
+
+/**
+ * Drains the SCIM outbox in batches. Each entry is sent and removed in its own
+ * transaction, so an entry is only deleted once the target accepted it
+ * (at-least-once delivery). Failed entries are retried with an exponential
+ * delay until {@code maxAttempts} is reached. Entries of the same resource are
+ * delivered in the order they were written: while one is waiting for a retry,
+ * the later ones wait too, so e.g. a DELETE never overtakes its CREATE.
+ * Entries replacing every member of a group are expanded by
+ * {@link ScimGroupFanOut}.
+ */
+public class ScimOutboxPoller implements ScheduledTask {
+    // Entries written in the same millisecond still need a distinct order.
+    private static final AtomicLong LAST_CREATED_AT = new AtomicLong();
+
+    final private Logger LOGGER = Logger.getLogger(ScimOutboxPoller.class);
+    final private ScimClientRegistry registry;
+    final private ScimGroupFanOut fanOut;
+    final private int batchSize;
+    final private int maxAttempts;
+    final private long retryInterval;
+
+    public ScimOutboxPoller(ScimClientRegistry registry, ScimGroupFanOut fanOut, int batchSize, int maxAttempts,
+            long retryInterval) {
+        this.registry = registry;
+        this.fanOut = fanOut;
+        this.batchSize = batchSize;
+        this.maxAttempts = maxAttempts;
+        this.retryInterval = retryInterval;
+    }
+
+    public static void enqueue(KeycloakSession session, String componentId, ScimOperation operation) {
+        var now = Time.currentTimeMillis();
+        var entry = new ScimOutbox();
+        entry.setId(KeycloakModelUtils.generateId());
+        entry.setRealmId(session.getContext().getRealm().getId());
+        entry.setComponentId(componentId);
+        entry.setScope(operation.scope());
+        entry.setAction(operation.action().name());
+        entry.setResourceId(operation.id());
+        entry.setMemberId(operation.memberId());
+        entry.setCreatedAt(LAST_CREATED_AT.accumulateAndGet(now, (last, time) -> Math.max(last + 1, time)));
+        entry.setNextAttemptAt(now);
+        getEntityManager(session).persist(entry);
+    }
+
+    @Override
+    public void run(KeycloakSession session) {
+        var entries = findDue(getEntityManager(session), Time.currentTimeMillis());
+        if (entries.isEmpty()) {
+            return;
+        }
+        LOGGER.debugf("Draining %d SCIM outbox entries", entries.size());
+        drain(session.getKeycloakSessionFactory(), entries);
+    }
+
+    protected List<ScimOutbox> findDue(EntityManager em, long now) {
+        return em.createNamedQuery("findDueOutbox", ScimOutbox.class)
+                .setParameter("now", now)
+                .setMaxResults(batchSize)
+                .getResultList();
+    }
+
+    /**
+     * Delivers the entries in order. Once an entry failed, the later entries of
+     * the same resource are left for a next poll.
+     */
+    protected void drain(KeycloakSessionFactory sessionFactory, List<ScimOutbox> entries) {
+        var blocked = new HashSet<List<String>>();
+        for (var entry : entries) {
+            var key = List.of(entry.getComponentId(), entry.getScope(), entry.getResourceId());
+            if (blocked.contains(key)) {
+                continue;
+            }
+            var operation = new ScimOperation(entry.getScope(), ScimOperation.Action.valueOf(entry.getAction()),
+                    entry.getResourceId(), entry.getMemberId());
+            try {
+                runInTransaction(sessionFactory, s -> deliver(s, entry, operation));
+            } catch (Exception e) {
+                LOGGER.warnf("Failed to deliver %s to component %s (attempt %d): %s", operation,
+                        entry.getComponentId(), entry.getAttempts() + 1, e.getMessage());
+                blocked.add(key);
+                runInTransaction(sessionFactory, s -> reschedule(getEntityManager(s), entry.getId()));
+            }
+        }
+    }
+
+    protected void runInTransaction(KeycloakSessionFactory sessionFactory, KeycloakSessionTask task) {
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, task);
+    }
+
+    protected void deliver(KeycloakSession session, ScimOutbox entry, ScimOperation operation) {
+        var realm = session.realms().getRealm(entry.getRealmId());
+        if (realm != null) {
+            session.getContext().setRealm(realm);
+            var model = realm.getComponent(entry.getComponentId());
+            if (model != null && model.get("enabled", true)) {
+                if (operation.action() == ScimOperation.Action.REPLACE_MEMBERS) {
+                    fanOut.run(realm.getId(), model.getId(), operation.id());
+                } else {
+                    try (var client = registry.getClient(model, session)) {
+                        client.execute(operation);
+                    }
+                }
+            }
+        }
+        remove(getEntityManager(session), entry.getId());
+    }
+
+    protected void reschedule(EntityManager em, String id) {
+        var entry = em.find(ScimOutbox.class, id);
+        if (entry == null) {
+            return;
+        }
+        var attempts = entry.getAttempts() + 1;
+        if (attempts >= maxAttempts) {
+            LOGGER.errorf("Giving up on %s %s %s for component %s after %d attempts", entry.getAction(),
+                    entry.getScope(), entry.getResourceId(), entry.getComponentId(), attempts);
+            em.remove(entry);
+            return;
+        }
+        entry.setAttempts(attempts);
+        entry.setNextAttemptAt(Time.currentTimeMillis() + retryInterval * (1L << Math.min(attempts, 10)));
+    }
+
+    protected void remove(EntityManager em, String id) {
+        var entry = em.find(ScimOutbox.class, id);
+        if (entry != null) {
+            em.remove(entry);
+        }
+    }
+
+    private static EntityManager getEntityManager(KeycloakSession session) {
+        return session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+}
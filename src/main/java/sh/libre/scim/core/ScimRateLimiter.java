@@ -0,0 +1,171 @@
+package sh.libre.scim.core;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jboss.logging.Logger;
+
+import com.google.common.net.HttpHeaders;
+
+/**
+ * Limits the number of concurrent requests sent to a service provider. The
+ * limit adapts AIMD-style: it grows by one every {@code limit} healthy
+ * responses and is halved on 429, 503 or connection errors. A
+ * {@code Retry-After} header also pauses every request until the given time.
+ * Without adaptation the limit stays at {@code maxLimit}.
+ */
+public class ScimRateLimiter {
+    // Several requests in flight usually get throttled together, only back off
+    // once per window.
+    private static final long DECREASE_WINDOW_MILLIS = 1000;
+
+    final private Logger LOGGER = Logger.getLogger(ScimRateLimiter.class);
+    final private String name;
+    final private int maxLimit;
+    final private boolean adaptive;
+    final private ReentrantLock lock = new ReentrantLock();
+    final private Condition available = lock.newCondition();
+    final private AtomicLong throttled = new AtomicLong();
+
+    private double limit;
+    private int inFlight;
+    private long pausedUntil;
+    private long lastDecrease;
+
+    public ScimRateLimiter(String name, int maxLimit, boolean adaptive) {
+        this.name = name;
+        this.maxLimit = Math.max(1, maxLimit);
+        this.adaptive = adaptive;
+        this.limit = this.maxLimit;
+    }
+
+    /**
+     * Waits for a request slot on the calling thread. Every acquired slot must
+     * be released with {@link #onResponse} or {@link #onError}.
+     */
+    public void acquire() {
+        lock.lock();
+        try {
+            while (true) {
+                var pause = pausedUntil - System.currentTimeMillis();
+                if (pause > 0) {
+                    available.await(pause, TimeUnit.MILLISECONDS);
+                } else if (inFlight >= (int) limit) {
+                    available.await();
+                } else {
+                    inFlight++;
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a SCIM request slot", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases the slot taken by a request that got a response.
+     */
+    public void onResponse(int status, Map<String, String> headers) {
+        lock.lock();
+        try {
+            inFlight--;
+            if (status == 429 || status == 503) {
+                throttled.incrementAndGet();
+                var retryAfter = retryAfterMillis(headers);
+                if (retryAfter > 0) {
+                    pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + retryAfter);
+                    LOGGER.infof("%s asked to retry after %d ms", name, retryAfter);
+                }
+                decrease();
+            } else if (adaptive && limit < maxLimit) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases the slot taken by a request that failed without a response.
+     *
+     * @param congestion Whether the failure hints at an overloaded target
+     *                   (timeout, refused connection...)
+     */
+    public void onError(boolean congestion) {
+        lock.lock();
+        try {
+            inFlight--;
+            if (congestion) {
+                decrease();
+            }
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void decrease() {
+        var now = System.currentTimeMillis();
+        if (!adaptive || now - lastDecrease < DECREASE_WINDOW_MILLIS) {
+            return;
+        }
+        lastDecrease = now;
+        limit = Math.max(1, limit / 2);
+        LOGGER.infof("%s throttled, concurrency limit lowered to %d", name, (int) limit);
+    }
+
+    static long retryAfterMillis(Map<String, String> headers) {
+        if (headers == null) {
+            return 0;
+        }
+        var value = headers.entrySet().stream()
+                .filter(e -> HttpHeaders.RETRY_AFTER.equalsIgnoreCase(e.getKey()))
+                .map(Map.Entry::getValue)
+                .findFirst()
+                .orElse(null);
+        if (value == null || value.isBlank()) {
+            return 0;
+        }
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            try {
+                var date = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+            } catch (Exception ignored) {
+                return 0;
+            }
+        }
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+}
@@ -0,0 +1,18 @@
+package sh.libre.scim.core;
+
+/**
+ * Thrown when a service provider answers a request with an error status, so
+ * callers such as the outbox poller retry the operation instead of dropping it.
+ */
+public class ScimResponseException extends RuntimeException {
+    private final int status;
+
+    public ScimResponseException(String type, String operation, String id, int status, String body) {
+        super("%s %s %s failed with status %d: %s".formatted(operation, type, id, status, body));
+        this.status = status;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+}
@@ -0,0 +1,92 @@
+package sh.libre.scim.core;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import jakarta.ws.rs.ProcessingException;
+
+import de.captaingoldfish.scim.sdk.client.response.ServerResponse;
+
+import io.github.resilience4j.core.IntervalFunction;
+import io.github.resilience4j.retry.Retry;
+import io.github.resilience4j.retry.RetryConfig;
+import io.github.resilience4j.retry.RetryRegistry;
+
+/**
+ * Retry policies of a SCIM service provider, one per kind of operation so the
+ * registry never grows with the number of resources. Connection errors and
+ * 429/503 responses are retried with exponential backoff on the calling
+ * thread. Only storage sync jobs retry this way: on the event path a single
+ * attempt is made and retryable failures are deferred to the outbox, which
+ * has its own scheduled backoff, so admin requests are never held up.
+ */
+public class ScimRetry {
+    public enum Operation {
+        CREATE(10),
+        REPLACE(10),
+        DELETE(10),
+        MEMBERSHIP(10),
+        LIST(5);
+
+        final private int maxAttempts;
+
+        Operation(int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+        }
+    }
+
+    final private RetryRegistry registry = RetryRegistry.ofDefaults();
+    final private Map<Operation, Retry> retries = new EnumMap<>(Operation.class);
+    final private Map<Operation, AtomicLong> retryCounts = new EnumMap<>(Operation.class);
+
+    public ScimRetry(String name) {
+        for (var operation : Operation.values()) {
+            var config = RetryConfig.<ServerResponse<?>>custom()
+                    .maxAttempts(operation.maxAttempts)
+                    .intervalFunction(IntervalFunction.ofExponentialBackoff())
+                    .retryExceptions(ProcessingException.class)
+                    .retryOnResult(ScimRetry::isRetryable)
+                    .build();
+            var retry = registry.retry(name + "-" + operation.name().toLowerCase(), config);
+            var count = new AtomicLong();
+            retry.getEventPublisher().onRetry(event -> count.incrementAndGet());
+            retries.put(operation, retry);
+            retryCounts.put(operation, count);
+        }
+    }
+
+    static boolean isRetryable(ServerResponse<?> response) {
+        return response != null && isRetryable(response.getHttpStatus());
+    }
+
+    /**
+     * Whether a failed request may succeed later: connection errors and
+     * 429/503 responses.
+     */
+    public static boolean isRetryable(Exception e) {
+        return e instanceof ProcessingException
+                || e instanceof ScimResponseException response && isRetryable(response.getStatus());
+    }
+
+    private static boolean isRetryable(int status) {
+        return status == 429 || status == 503;
+    }
+
+    /**
+     * Runs the call, retrying it when needed. The call must only send an
+     * already built request.
+     */
+    public <T extends ServerResponse<?>> T execute(Operation operation, Supplier<T> call) {
+        return retries.get(operation).executeSupplier(call);
+    }
+
+    public long getRetryCount(Operation operation) {
+        return retryCounts.get(operation).get();
+    }
+
+    public Retry.Metrics getMetrics(Operation operation) {
+        return retries.get(operation).getMetrics();
+    }
+}
@@ -0,0 +1,144 @@
+package sh.libre.scim.core;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+
+/**
+ * Per-realm index of the roles flagged {@code scim=true}, so users are not
+ * resolved by reading the attributes of every role they have. For each role
+ * the index keeps the names of the flagged roles it grants, composites
+ * included, and for each group those granted by the group and its parents.
+ * Entries are computed on first use and the whole realm is dropped when a
+ * role, a group or a group role mapping changes, on every cluster node, or
+ * when the realm is removed. Changes made without an admin event (imports,
+ * federation mappers, realms without the listener) are picked up once the
+ * snapshot of the realm expires.
+ */
+public class ScimRoleIndex {
+    public static final String SCIM_ATTRIBUTE = "scim";
+
+    private static final ScimRoleIndex INSTANCE = new ScimRoleIndex();
+
+    final private Map<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+    final private ScimInvalidation invalidation = ScimInvalidation.register("roles",
+            (realmId, keys) -> drop(realmId));
+    private volatile long ttlMillis = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * Flagged roles of one realm. Once dropped, a snapshot is marked stale and
+     * entries computed by readers still holding it are no longer stored, so a
+     * read racing an invalidation can't bring back data read before the change.
+     */
+    public static class Snapshot {
+        final private Map<String, Set<String>> roles = new ConcurrentHashMap<>();
+        final private Map<String, Set<String>> groups = new ConcurrentHashMap<>();
+        final private long expiresAt;
+        private volatile boolean stale;
+
+        Snapshot(long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * Names of the flagged roles granted by the role, itself included.
+         */
+        public Set<String> forRole(RoleModel role) {
+            var cached = roles.get(role.getId());
+            if (cached != null) {
+                return cached;
+            }
+            var names = expand(role);
+            if (!stale) {
+                roles.putIfAbsent(role.getId(), names);
+            }
+            return names;
+        }
+
+        /**
+         * Names of the flagged roles granted by the role mappings of the group
+         * and of its parents.
+         */
+        public Set<String> forGroup(GroupModel group) {
+            var cached = groups.get(group.getId());
+            if (cached != null) {
+                return cached;
+            }
+            var names = new HashSet<String>();
+            group.getRoleMappingsStream().forEach(r -> names.addAll(forRole(r)));
+            var parent = group.getParent();
+            if (parent != null) {
+                names.addAll(forGroup(parent));
+            }
+            var result = names.isEmpty() ? Collections.<String>emptySet() : Set.copyOf(names);
+            if (!stale) {
+                groups.putIfAbsent(group.getId(), result);
+            }
+            return result;
+        }
+
+        private static Set<String> expand(RoleModel role) {
+            var names = new HashSet<String>();
+            var visited = new HashSet<String>();
+            var pending = new ArrayDeque<RoleModel>();
+            pending.add(role);
+            while (!pending.isEmpty()) {
+                var current = pending.poll();
+                if (!visited.add(current.getId())) {
+                    continue;
+                }
+                if ("true".equals(current.getFirstAttribute(SCIM_ATTRIBUTE))) {
+                    names.add(current.getName());
+                }
+                if (current.isComposite()) {
+                    current.getCompositesStream().forEach(pending::add);
+                }
+            }
+            return names.isEmpty() ? Collections.emptySet() : Set.copyOf(names);
+        }
+    }
+
+    public static ScimRoleIndex getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Sets how long the snapshot of a realm is kept at most.
+     */
+    public static void configure(long ttlSeconds) {
+        INSTANCE.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+    }
+
+    public Snapshot get(RealmModel realm) {
+        var now = System.currentTimeMillis();
+        return snapshots.compute(realm.getId(), (id, existing) -> {
+            if (existing != null && existing.expiresAt > now) {
+                return existing;
+            }
+            if (existing != null) {
+                existing.stale = true;
+            }
+            return new Snapshot(now + ttlMillis);
+        });
+    }
+
+    public void invalidate(KeycloakSession session, String realmId) {
+        invalidation.invalidate(session, realmId);
+    }
+
+    private void drop(String realmId) {
+        var removed = snapshots.remove(realmId);
+        if (removed != null) {
+            removed.stale = true;
+        }
+    }
+}
@@ -3,9 +3,9 @@ package sh.libre.scim.core;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
 import java.util.stream.Stream;
 
 import de.captaingoldfish.scim.sdk.client.ScimRequestBuilder;
@@ -107,83 +107,92 @@ public class UserAdapter extends Adapter<UserModel, User> {
 
     @Override
     public void apply(UserModel user) {
-        setId(user.getId());
-        setUsername(user.getUsername());
-        setGivenName(user.getFirstName());
-        setFamilyName(user.getLastName());
-        var displayName = String.format("%s %s", StringUtils.defaultString(user.getFirstName()),
-                StringUtils.defaultString(user.getLastName())).trim();
-        if (StringUtils.isEmpty(displayName)) {
-            displayName = user.getUsername();
-        }
-        setDisplayName(displayName);
-        setEmail(user.getEmail());
-        setActive(user.isEnabled());
-        var rolesSet = new HashSet<String>();
-        user.getGroupsStream().flatMap(g -> g.getRoleMappingsStream())
-                .filter(r -> "true".equals(r.getFirstAttribute("scim"))).map(r -> r.getName())
-                .forEach(r -> rolesSet.add(r));
-
-        user.getRoleMappingsStream().filter(r -> {
-            var attr = r.getFirstAttribute("scim");
-            if (attr == null) {
-                return false;
+        var event = ScimEvents.ConversionEvent.begin(componentId, type, ScimEvents.APPLY_MODEL);
+        try {
+            setId(user.getId());
+            setUsername(user.getUsername());
+            setGivenName(user.getFirstName());
+            setFamilyName(user.getLastName());
+            var displayName = String.format("%s %s", StringUtils.defaultString(user.getFirstName()),
+                    StringUtils.defaultString(user.getLastName())).trim();
+            if (StringUtils.isEmpty(displayName)) {
+                displayName = user.getUsername();
             }
-            return "true".equals(attr);
-        }).map(r -> r.getName()).forEach(r -> rolesSet.add(r));
-
-        var roles = new String[rolesSet.size()];
-        rolesSet.toArray(roles);
-        setRoles(roles);
-        this.skip = StringUtils.equals(user.getFirstAttribute("scim-skip"), "true");
+            setDisplayName(displayName);
+            setEmail(user.getEmail());
+            setActive(user.isEnabled());
+            // Flagged roles come from the realm index, composites and parent groups included.
+            var roleIndex = ScimRoleIndex.getInstance().get(realm);
+            // Sorted so the SCIM representation, and thus the fingerprint, is stable.
+            var rolesSet = new TreeSet<String>();
+            user.getGroupsStream().forEach(g -> rolesSet.addAll(roleIndex.forGroup(g)));
+            user.getRoleMappingsStream().forEach(r -> rolesSet.addAll(roleIndex.forRole(r)));
+
+            var roles = new String[rolesSet.size()];
+            rolesSet.toArray(roles);
+            setRoles(roles);
+            this.skip = StringUtils.equals(user.getFirstAttribute("scim-skip"), "true");
+        } finally {
+            event.end(id);
+        }
     }
 
     @Override
     public void apply(User user) {
-        setExternalId(user.getId().get());
-        setUsername(user.getUserName().get());
-        setDisplayName(user.getDisplayName().get());
-        setActive(user.isActive().get());
-        if (user.getEmails().size() > 0) {
-            setEmail(user.getEmails().get(0).getValue().get());
+        var event = ScimEvents.ConversionEvent.begin(componentId, type, ScimEvents.APPLY_RESOURCE);
+        try {
+            setExternalId(user.getId().get());
+            setUsername(user.getUserName().get());
+            setDisplayName(user.getDisplayName().get());
+            setActive(user.isActive().get());
+            if (user.getEmails().size() > 0) {
+                setEmail(user.getEmails().get(0).getValue().get());
+            }
+        } finally {
+            event.end(externalId);
         }
     }
 
     @Override
     public User toSCIM(Boolean addMeta) {
-        var user = new User();
-        user.setExternalId(id);
-        user.setUserName(username);
-        user.setId(externalId);
-        user.setDisplayName(displayName);
-        Name name = new Name();
-        name.setGivenName(givenName);
-        name.setFamilyName(familyName);
-        user.setName(name);
-        var emails = new ArrayList<Email>();
-        if (email != null) {
-            emails.add(
-                    Email.builder().value(getEmail()).build());
-        }
-        user.setEmails(emails);
-        user.setActive(active);
-        if (addMeta) {
-            var meta = new Meta();
-            try {
-                var uri = new URI("Users/" + externalId);
-                meta.setLocation(uri.toString());
-            } catch (URISyntaxException e) {
+        var event = ScimEvents.ConversionEvent.begin(componentId, type, ScimEvents.TO_SCIM);
+        try {
+            var user = new User();
+            user.setExternalId(id);
+            user.setUserName(username);
+            user.setId(externalId);
+            user.setDisplayName(displayName);
+            Name name = new Name();
+            name.setGivenName(givenName);
+            name.setFamilyName(familyName);
+            user.setName(name);
+            var emails = new ArrayList<Email>();
+            if (email != null) {
+                emails.add(
+                        Email.builder().value(getEmail()).build());
             }
-            user.setMeta(meta);
-        }
-        List<PersonRole> roles = new ArrayList<PersonRole>();
-        for (var r : this.roles) {
-            var role = new PersonRole();
-            role.setValue(r);
-            roles.add(role);
+            user.setEmails(emails);
+            user.setActive(active);
+            if (addMeta) {
+                var meta = new Meta();
+                try {
+                    var uri = new URI("Users/" + externalId);
+                    meta.setLocation(uri.toString());
+                } catch (URISyntaxException e) {
+                }
+                user.setMeta(meta);
+            }
+            List<PersonRole> roles = new ArrayList<PersonRole>();
+            for (var r : this.roles) {
+                var role = new PersonRole();
+                role.setValue(r);
+                roles.add(role);
+            }
+            user.setRoles(roles);
+            return user;
+        } finally {
+            event.end(id);
         }
-        user.setRoles(roles);
-        return user;
     }
 
     @Override
@@ -197,6 +206,16 @@ public class UserAdapter extends Adapter<UserModel, User> {
         this.id = user.getId();
     }
 
+    @Override
+    public UserModel getEntity(String id) {
+        return session.users().getUserById(realm, id);
+    }
+
+    @Override
+    protected String getEntityId(UserModel model) {
+        return model.getId();
+    }
+
     @Override
     public Boolean entityExists() {
         if (this.id == null) {
@@ -248,27 +267,32 @@ public class UserAdapter extends Adapter<UserModel, User> {
 
     @Override
     public PatchBuilder<User> toPatchBuilder(ScimRequestBuilder scimRequestBuilder, String url) {
-        var emails = new ArrayList<Email>();
-        if (email != null) {
-            emails.add(
-                    Email.builder().value(getEmail()).build());
+        var event = ScimEvents.ConversionEvent.begin(componentId, type, ScimEvents.TO_PATCH_BUILDER);
+        try {
+            var emails = new ArrayList<Email>();
+            if (email != null) {
+                emails.add(
+                        Email.builder().value(getEmail()).build());
+            }
+            PatchBuilder<User> patchBuilder;
+            patchBuilder = scimRequestBuilder.patch(url, User.class);
+            patchBuilder.addOperation()
+                    .path("active")
+                    .op(PatchOp.REPLACE)
+                    .value(active.toString())
+                    .next()
+                    .path("userName")
+                    .op(PatchOp.REPLACE)
+                    .value(username)
+                    .next()
+                    .path("displayName")
+                    .op(PatchOp.REPLACE)
+                    .value(displayName)
+                    .build();
+
+            return patchBuilder;
+        } finally {
+            event.end(id);
         }
-        PatchBuilder<User> patchBuilder;
-        patchBuilder = scimRequestBuilder.patch(url, User.class);
-        patchBuilder.addOperation()
-                .path("active")
-                .op(PatchOp.REPLACE)
-                .value(active.toString())
-                .next()
-                .path("userName")
-                .op(PatchOp.REPLACE)
-                .value(username)
-                .next()
-                .path("displayName")
-                .op(PatchOp.REPLACE)
-                .value(displayName)
-                .build();
-
-        return patchBuilder;
     }
 }
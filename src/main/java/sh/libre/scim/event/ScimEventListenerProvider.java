@@ -10,13 +10,15 @@ import org.keycloak.events.EventType;
 import org.keycloak.events.admin.AdminEvent;
 import org.keycloak.events.admin.OperationType;
 import org.keycloak.events.admin.ResourceType;
-import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.UserModel;
 
-import sh.libre.scim.core.GroupAdapter;
+import sh.libre.scim.core.ScimAsyncExecutor;
+import sh.libre.scim.core.ScimChangeLog;
+import sh.libre.scim.core.ScimClientRegistry;
 import sh.libre.scim.core.ScimDispatcher;
-import sh.libre.scim.core.UserAdapter;
+import sh.libre.scim.core.ScimOperation;
+import sh.libre.scim.core.ScimRoleIndex;
 
 public class ScimEventListenerProvider implements EventListenerProvider {
     final Logger LOGGER = Logger.getLogger(ScimEventListenerProvider.class);
@@ -24,9 +26,10 @@ public class ScimEventListenerProvider implements EventListenerProvider {
     KeycloakSession session;
     HashMap<ResourceType, Pattern> patterns = new HashMap<ResourceType, Pattern>();
 
-    public ScimEventListenerProvider(KeycloakSession session) {
+    public ScimEventListenerProvider(KeycloakSession session, ScimClientRegistry registry,
+            ScimDispatcher.Mode mode, ScimAsyncExecutor executor, long deadline) {
         this.session = session;
-        dispatcher = new ScimDispatcher(session);
+        dispatcher = new ScimDispatcher(session, registry, mode, executor, deadline);
         patterns.put(ResourceType.USER, Pattern.compile("users/(.+)"));
         patterns.put(ResourceType.GROUP, Pattern.compile("groups/([\\w-]+)(/children)?"));
         patterns.put(ResourceType.GROUP_MEMBERSHIP, Pattern.compile("users/(.+)/groups/(.+)"));
@@ -39,25 +42,36 @@ public class ScimEventListenerProvider implements EventListenerProvider {
 
     @Override
     public void onEvent(Event event) {
+        if (!dispatcher.hasComponents()) {
+            return;
+        }
         if (event.getType() == EventType.VERIFY_EMAIL) {
             var user = getUser(event.getUserId());
-            if (user.isEmailVerified()){
-                dispatcher.run(ScimDispatcher.SCOPE_USER, client -> client.create(UserAdapter.class, user));
+            if (user != null && user.isEmailVerified()){
+                dispatcher.dispatch(ScimOperation.create(ScimDispatcher.SCOPE_USER, event.getUserId()));
             }
         }
         if (event.getType() == EventType.UPDATE_EMAIL || event.getType() == EventType.UPDATE_PROFILE) {
-            var user = getUser(event.getUserId());
-            dispatcher.run(ScimDispatcher.SCOPE_USER, client -> client.replace(UserAdapter.class, user));
+            dispatcher.dispatch(ScimOperation.replace(ScimDispatcher.SCOPE_USER, event.getUserId()));
         }
         if (event.getType() == EventType.DELETE_ACCOUNT) {
-            dispatcher.run(ScimDispatcher.SCOPE_USER, client -> client.delete(UserAdapter.class, event.getUserId()));
+            dispatcher.dispatch(ScimOperation.delete(ScimDispatcher.SCOPE_USER, event.getUserId()));
         }
     }
 
     @Override
     public void onEvent(AdminEvent event, boolean includeRepresentation) {
+        // Before dispatching, so users pushed for this event already see the change.
+        if (changesRoleIndex(event)) {
+            ScimRoleIndex.getInstance().invalidate(session, event.getRealmId());
+            // Members of a group are recorded when its role mappings are dispatched,
+            // those granted a role can't be listed cheaply.
+            if (changesRoles(event) && dispatcher.hasComponents()) {
+                ScimChangeLog.recordRealm(session, event.getRealmId());
+            }
+        }
         var pattern = patterns.get(event.getResourceType());
-        if (pattern == null) {
+        if (pattern == null || !dispatcher.hasComponents()) {
             return;
         }
         var matcher = pattern.matcher(event.getResourcePath());
@@ -69,72 +83,101 @@ public class ScimEventListenerProvider implements EventListenerProvider {
             LOGGER.infof("%s %s", userId, event.getOperationType());
             if (event.getOperationType() == OperationType.CREATE) {
                 var user = getUser(userId);
-                if (user.isEmailVerified()) {
-                    dispatcher.run(ScimDispatcher.SCOPE_USER, client -> client.create(UserAdapter.class, user));
+                if (user != null && user.isEmailVerified()) {
+                    dispatcher.dispatch(ScimOperation.create(ScimDispatcher.SCOPE_USER, userId));
                     user.getGroupsStream().forEach(group -> {
-                        dispatcher.run(ScimDispatcher.SCOPE_GROUP, client -> client.replace(GroupAdapter.class, group));
+                        dispatcher.dispatch(ScimOperation.replace(ScimDispatcher.SCOPE_GROUP, group.getId()));
                     });
                 }
             }
             if (event.getOperationType() == OperationType.UPDATE) {
                 var user = getUser(userId);
-                if (user.isEmailVerified()) {
-                    dispatcher.run(ScimDispatcher.SCOPE_USER, client -> client.replace(UserAdapter.class, user));
+                if (user != null && user.isEmailVerified()) {
+                    dispatcher.dispatch(ScimOperation.replace(ScimDispatcher.SCOPE_USER, userId));
                 }
             }
             if (event.getOperationType() == OperationType.DELETE) {
-                var user = getUser(userId);
-                if (user.isEmailVerified()) {
-                    dispatcher.run(ScimDispatcher.SCOPE_USER, client -> client.delete(UserAdapter.class, userId));
-                }
+                // The user is already gone, users never sent have no mapping to delete.
+                dispatcher.dispatch(ScimOperation.delete(ScimDispatcher.SCOPE_USER, userId));
             }
         }
         if (event.getResourceType() == ResourceType.GROUP) {
             var groupId = matcher.group(1);
             LOGGER.infof("group %s %s", groupId, event.getOperationType());
             if (event.getOperationType() == OperationType.CREATE) {
-                var group = getGroup(groupId);
-                dispatcher.run(ScimDispatcher.SCOPE_GROUP, client -> client.create(GroupAdapter.class, group));
+                dispatcher.dispatch(ScimOperation.create(ScimDispatcher.SCOPE_GROUP, groupId));
             }
             if (event.getOperationType() == OperationType.UPDATE) {
-                var group = getGroup(groupId);
-                dispatcher.run(ScimDispatcher.SCOPE_GROUP, client -> client.replace(GroupAdapter.class, group));
+                dispatcher.dispatch(ScimOperation.replace(ScimDispatcher.SCOPE_GROUP, groupId));
             }
             if (event.getOperationType() == OperationType.DELETE) {
-                dispatcher.run(ScimDispatcher.SCOPE_GROUP,
-                        client -> client.delete(GroupAdapter.class, groupId));
+                dispatcher.dispatch(ScimOperation.delete(ScimDispatcher.SCOPE_GROUP, groupId));
             }
         }
         if (event.getResourceType() == ResourceType.GROUP_MEMBERSHIP) {
             var userId = matcher.group(1);
             var groupId = matcher.group(2);
             LOGGER.infof("%s %s from %s", event.getOperationType(), userId, groupId);
-            var group = getGroup(groupId);
-            dispatcher.run(ScimDispatcher.SCOPE_GROUP, client -> client.replace(GroupAdapter.class, group));
-            var user = getUser(userId);
-            dispatcher.run(ScimDispatcher.SCOPE_USER, client -> client.replace(UserAdapter.class, user));
+            if (event.getOperationType() == OperationType.CREATE) {
+                dispatcher.dispatch(ScimOperation.addMember(groupId, userId));
+            } else if (event.getOperationType() == OperationType.DELETE) {
+                dispatcher.dispatch(ScimOperation.removeMember(groupId, userId));
+            } else {
+                dispatcher.dispatch(ScimOperation.replace(ScimDispatcher.SCOPE_GROUP, groupId));
+            }
+            dispatcher.dispatch(ScimOperation.replace(ScimDispatcher.SCOPE_USER, userId));
         }
         if (event.getResourceType() == ResourceType.REALM_ROLE_MAPPING) {
             var type = matcher.group(1);
             var id = matcher.group(2);
             LOGGER.infof("%s %s %s roles", event.getOperationType(), type, id);
             if ("users".equals(type)) {
-                var user = getUser(id);
-                dispatcher.run(ScimDispatcher.SCOPE_USER, client -> client.replace(UserAdapter.class, user));
+                dispatcher.dispatch(ScimOperation.replace(ScimDispatcher.SCOPE_USER, id));
             } else if ("groups".equals(type)) {
-                var group = getGroup(id);
-                session.users().getGroupMembersStream(session.getContext().getRealm(), group).forEach(user -> {
-                    dispatcher.run(ScimDispatcher.SCOPE_USER, client -> client.replace(UserAdapter.class, user));
-                });
+                dispatcher.dispatchGroupMembers(id);
             }
         }
     }
 
-    private UserModel getUser(String id) {
-        return session.users().getUserById(session.getContext().getRealm(), id);
+    /**
+     * Whether the event may change the SCIM roles granted by a role or a group:
+     * role attributes or composites, group role mappings or group hierarchy.
+     */
+    private boolean changesRoleIndex(AdminEvent event) {
+        if (event.getResourceType() == null) {
+            return false;
+        }
+        switch (event.getResourceType()) {
+            case REALM_ROLE:
+            case CLIENT_ROLE:
+            case GROUP:
+                return true;
+            case REALM_ROLE_MAPPING:
+            case CLIENT_ROLE_MAPPING:
+                return event.getResourcePath().startsWith("groups/");
+            case CLIENT:
+                return event.getOperationType() == OperationType.DELETE;
+            default:
+                return false;
+        }
     }
 
-    private GroupModel getGroup(String id) {
-        return session.groups().getGroupById(session.getContext().getRealm(), id);
+    /**
+     * Whether the event may change the SCIM roles granted by a role: role
+     * attributes or composites, or client roles removed with their client.
+     */
+    private boolean changesRoles(AdminEvent event) {
+        switch (event.getResourceType()) {
+            case REALM_ROLE:
+            case CLIENT_ROLE:
+            case CLIENT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private UserModel getUser(String id) {
+        return session.users().getUserById(session.getContext().getRealm(), id);
     }
 }
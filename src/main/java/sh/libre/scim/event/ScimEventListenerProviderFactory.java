@@ -1,28 +1,111 @@
 package sh.libre.scim.event;
 
+import java.util.List;
+
+import org.jboss.logging.Logger;
 import org.keycloak.Config.Scope;
 import org.keycloak.events.EventListenerProvider;
 import org.keycloak.events.EventListenerProviderFactory;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.services.scheduled.ClusterAwareScheduledTaskRunner;
+import org.keycloak.timer.TimerProvider;
+
+import io.micrometer.core.instrument.Meter;
+
+import sh.libre.scim.core.ScimAsyncExecutor;
+import sh.libre.scim.core.ScimChangeLog;
+import sh.libre.scim.core.ScimClientRegistry;
+import sh.libre.scim.core.ScimDispatcher;
+import sh.libre.scim.core.ScimGroupFanOut;
+import sh.libre.scim.core.ScimInvalidation;
+import sh.libre.scim.core.ScimMappingCache;
+import sh.libre.scim.core.ScimMetrics;
+import sh.libre.scim.core.ScimOutboxPoller;
+import sh.libre.scim.core.ScimRoleIndex;
 
 public class ScimEventListenerProviderFactory implements EventListenerProviderFactory {
+    final private Logger LOGGER = Logger.getLogger(ScimEventListenerProviderFactory.class);
+    final private ScimClientRegistry registry = ScimClientRegistry.getInstance();
+    private Scope config;
+    private ScimDispatcher.Mode mode;
+    private ScimAsyncExecutor executor;
+    private ScimGroupFanOut fanOut;
+    private long deadline;
+    private List<Meter> meters = List.of();
 
     @Override
     public EventListenerProvider create(KeycloakSession session) {
-        return new ScimEventListenerProvider(session);
+        return new ScimEventListenerProvider(session, registry, mode, executor, deadline);
     }
 
     @Override
     public void init(Scope config) {
+        this.config = config;
+        ScimMappingCache.configure(config.getLong("mapping-cache-size", 10000L),
+                config.getLong("mapping-cache-ttl", 300L));
+        ScimRoleIndex.configure(config.getLong("role-index-ttl", 300L));
     }
 
     @Override
     public void postInit(KeycloakSessionFactory factory) {
+        meters = ScimMetrics.registerMappingCache(ScimMappingCache.getInstance());
+        KeycloakModelUtils.runJobInTransaction(factory, session -> {
+            ScimInvalidation.registerClusterListener(session);
+        });
+        factory.register(event -> {
+            if (event instanceof RealmModel.RealmRemovedEvent removed) {
+                ScimInvalidation.invalidateRealm(removed.getKeycloakSession(), removed.getRealm().getId());
+            }
+        });
+        mode = ScimDispatcher.Mode.valueOf(config.get("dispatch-mode", "sync").toUpperCase());
+        deadline = config.getLong("sync-deadline", 0L);
+        if (mode == ScimDispatcher.Mode.ASYNC) {
+            var workers = config.getInt("async-workers", 4);
+            var queueSize = config.getInt("async-queue-size", 1000);
+            var rejectionPolicy = config.get("async-rejection-policy", ScimAsyncExecutor.REJECT_CALLER_RUNS);
+            var coalesceWindow = config.getLong("coalesce-window", 0L);
+            LOGGER.infof("Async SCIM dispatch with %d workers, queue size %d, rejection policy %s, coalescing window %d ms",
+                    workers, queueSize, rejectionPolicy, coalesceWindow);
+            executor = new ScimAsyncExecutor(factory, registry, workers, queueSize, rejectionPolicy, coalesceWindow);
+        }
+        fanOut = new ScimGroupFanOut(factory, registry, config.getInt("fanout-page-size", 500),
+                config.getInt("fanout-parallelism", 4), mode == ScimDispatcher.Mode.OUTBOX);
+        // Also drains operations deferred while a circuit breaker is open, so the
+        // outbox is polled whatever the dispatch mode.
+        var interval = config.getLong("outbox-interval", 5000L);
+        var poller = new ScimOutboxPoller(registry, fanOut, config.getInt("outbox-batch-size", 100),
+                config.getInt("outbox-max-attempts", 20), interval);
+        LOGGER.infof("SCIM outbox drained every %d ms", interval);
+        var pruneInterval = config.getLong("changelog-prune-interval", 3600000L);
+        KeycloakModelUtils.runJobInTransaction(factory, session -> {
+            var timer = session.getProvider(TimerProvider.class);
+            timer.schedule(new ClusterAwareScheduledTaskRunner(factory, poller, interval), interval, "scim-outbox");
+            timer.schedule(new ClusterAwareScheduledTaskRunner(factory, ScimChangeLog::prune, pruneInterval),
+                    pruneInterval, "scim-changelog-prune");
+        });
     }
 
     @Override
     public void close() {
+        ScimMetrics.remove(meters);
+        if (fanOut != null) {
+            fanOut.close();
+        }
+        if (executor != null) {
+            executor.close();
+        }
+        registry.close();
+    }
+
+    public ScimAsyncExecutor getExecutor() {
+        return executor;
+    }
+
+    public ScimGroupFanOut getFanOut() {
+        return fanOut;
     }
 
     @Override
@@ -0,0 +1,72 @@
+package sh.libre.scim.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.NamedQueries;
+import jakarta.persistence.NamedQuery;
+import jakarta.persistence.Table;
+
+@Entity
+@Table(name = "SCIM_CHANGE")
+@NamedQueries({
+                @NamedQuery(name = "findChangesSince", query = "from ScimChange where realmId = :realmId and changedAt >= :since order by changedAt"),
+                @NamedQuery(name = "deleteChangesBefore", query = "delete from ScimChange where changedAt < :before")})
+public class ScimChange {
+        @Id
+        @Column(name = "ID", nullable = false)
+        private String id;
+
+        @Column(name = "REALM_ID", nullable = false)
+        private String realmId;
+
+        @Column(name = "SCOPE", nullable = false)
+        private String scope;
+
+        @Column(name = "RESOURCE_ID", nullable = false)
+        private String resourceId;
+
+        @Column(name = "CHANGED_AT", nullable = false)
+        private long changedAt;
+
+        public String getId() {
+                return id;
+        }
+
+        public void setId(String id) {
+                this.id = id;
+        }
+
+        public String getRealmId() {
+                return realmId;
+        }
+
+        public void setRealmId(String realmId) {
+                this.realmId = realmId;
+        }
+
+        public String getScope() {
+                return scope;
+        }
+
+        public void setScope(String scope) {
+                this.scope = scope;
+        }
+
+        public String getResourceId() {
+                return resourceId;
+        }
+
+        public void setResourceId(String resourceId) {
+                this.resourceId = resourceId;
+        }
+
+        public long getChangedAt() {
+                return changedAt;
+        }
+
+        public void setChangedAt(long changedAt) {
+                this.changedAt = changedAt;
+        }
+
+}
@@ -0,0 +1,132 @@
+package sh.libre.scim.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.NamedQueries;
+import jakarta.persistence.NamedQuery;
+import jakarta.persistence.Table;
+
+@Entity
+@Table(name = "SCIM_OUTBOX")
+@NamedQueries({
+                // Entries of a resource are delivered in order: one waits while an older entry of the
+                // same resource was rescheduled after a failure.
+                @NamedQuery(name = "findDueOutbox", query = "from ScimOutbox o where o.nextAttemptAt <= :now"
+                                + " and not exists (select p.id from ScimOutbox p where p.componentId = o.componentId"
+                                + " and p.scope = o.scope and p.resourceId = o.resourceId"
+                                + " and p.createdAt < o.createdAt and p.nextAttemptAt > :now)"
+                                + " order by o.createdAt")})
+public class ScimOutbox {
+        @Id
+        @Column(name = "ID", nullable = false)
+        private String id;
+
+        @Column(name = "REALM_ID", nullable = false)
+        private String realmId;
+
+        @Column(name = "COMPONENT_ID", nullable = false)
+        private String componentId;
+
+        @Column(name = "SCOPE", nullable = false)
+        private String scope;
+
+        @Column(name = "ACTION", nullable = false)
+        private String action;
+
+        @Column(name = "RESOURCE_ID", nullable = false)
+        private String resourceId;
+
+        @Column(name = "MEMBER_ID")
+        private String memberId;
+
+        @Column(name = "CREATED_AT", nullable = false)
+        private long createdAt;
+
+        @Column(name = "NEXT_ATTEMPT_AT", nullable = false)
+        private long nextAttemptAt;
+
+        @Column(name = "ATTEMPTS", nullable = false)
+        private int attempts;
+
+        public String getId() {
+                return id;
+        }
+
+        public void setId(String id) {
+                this.id = id;
+        }
+
+        public String getRealmId() {
+                return realmId;
+        }
+
+        public void setRealmId(String realmId) {
+                this.realmId = realmId;
+        }
+
+        public String getComponentId() {
+                return componentId;
+        }
+
+        public void setComponentId(String componentId) {
+                this.componentId = componentId;
+        }
+
+        public String getScope() {
+                return scope;
+        }
+
+        public void setScope(String scope) {
+                this.scope = scope;
+        }
+
+        public String getAction() {
+                return action;
+        }
+
+        public void setAction(String action) {
+                this.action = action;
+        }
+
+        public String getResourceId() {
+                return resourceId;
+        }
+
+        public void setResourceId(String resourceId) {
+                this.resourceId = resourceId;
+        }
+
+        public String getMemberId() {
+                return memberId;
+        }
+
+        public void setMemberId(String memberId) {
+                this.memberId = memberId;
+        }
+
+        public long getCreatedAt() {
+                return createdAt;
+        }
+
+        public void setCreatedAt(long createdAt) {
+                this.createdAt = createdAt;
+        }
+
+        public long getNextAttemptAt() {
+                return nextAttemptAt;
+        }
+
+        public void setNextAttemptAt(long nextAttemptAt) {
+                this.nextAttemptAt = nextAttemptAt;
+        }
+
+        public int getAttempts() {
+                return attempts;
+        }
+
+        public void setAttempts(int attempts) {
+                this.attempts = attempts;
+        }
+
+}
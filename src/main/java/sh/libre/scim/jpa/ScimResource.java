@@ -13,7 +13,9 @@ import jakarta.persistence.Table;
 @Table(name = "SCIM_RESOURCE")
 @NamedQueries({
                 @NamedQuery(name = "findById", query = "from ScimResource where realmId = :realmId and componentId = :componentId and type = :type and id = :id"),
-                @NamedQuery(name = "findByExternalId", query = "from ScimResource where realmId = :realmId and componentId = :componentId and type = :type and externalId = :id")})
+                @NamedQuery(name = "findByExternalId", query = "from ScimResource where realmId = :realmId and componentId = :componentId and type = :type and externalId = :id"),
+                @NamedQuery(name = "findByIds", query = "from ScimResource where realmId = :realmId and componentId = :componentId and type = :type and id in (:ids)"),
+                @NamedQuery(name = "findByExternalIds", query = "from ScimResource where realmId = :realmId and componentId = :componentId and type = :type and externalId in (:ids)")})
 public class ScimResource {
         @Id
         @Column(name = "ID", nullable = false)
@@ -31,10 +33,12 @@ public class ScimResource {
         @Column(name = "TYPE", nullable = false)
         private String type;
 
-        @Id
         @Column(name = "EXTERNAL_ID", nullable = false)
         private String externalId;
 
+        @Column(name = "FINGERPRINT")
+        private String fingerprint;
+
         public String getId() {
                 return id;
         }
@@ -67,6 +71,14 @@ public class ScimResource {
                 this.externalId = externalId;
         }
 
+        public String getFingerprint() {
+                return fingerprint;
+        }
+
+        public void setFingerprint(String fingerprint) {
+                this.fingerprint = fingerprint;
+        }
+
         public String getType() {
                 return type;
         }
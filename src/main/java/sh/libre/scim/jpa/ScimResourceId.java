@@ -8,17 +8,15 @@ public class ScimResourceId implements Serializable {
     private String realmId;
     private String componentId;
     private String type;
-    private String externalId;
 
     public ScimResourceId() {
     }
 
-    public ScimResourceId(String id, String realmId, String componentId, String type, String externalId) {
+    public ScimResourceId(String id, String realmId, String componentId, String type) {
         this.setId(id);
         this.setRealmId(realmId);
         this.setComponentId(componentId);
         this.setType(type);
-        this.setExternalId(externalId);
     }
 
     public String getId() {
@@ -53,14 +51,6 @@ public class ScimResourceId implements Serializable {
         this.type = type;
     }
 
-    public String getExternalId() {
-        return externalId;
-    }
-
-    public void setExternalId(String externalId) {
-        this.externalId = externalId;
-    }
-
     @Override
     public boolean equals(Object other) {
         if (this == other) {
@@ -70,15 +60,14 @@ public class ScimResourceId implements Serializable {
             return false;
         }
         var o = (ScimResourceId) other;
-        return o.id == id
-                && o.realmId == realmId
-                && o.componentId == componentId
-                && o.type == type
-                && o.externalId == externalId;
+        return Objects.equals(o.id, id)
+                && Objects.equals(o.realmId, realmId)
+                && Objects.equals(o.componentId, componentId)
+                && Objects.equals(o.type, type);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(realmId, componentId, type, id, externalId);
+        return Objects.hash(realmId, componentId, type, id);
     }
 }
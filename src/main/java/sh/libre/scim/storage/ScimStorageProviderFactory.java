@@ -6,10 +6,12 @@ import java.util.List;
 import jakarta.ws.rs.core.MediaType;
 
 import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.KeycloakSessionTask;
+import org.keycloak.models.RealmModel;
 import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.provider.ProviderConfigurationBuilder;
@@ -19,6 +21,9 @@ import org.keycloak.storage.user.ImportSynchronization;
 import org.keycloak.storage.user.SynchronizationResult;
 
 import sh.libre.scim.core.GroupAdapter;
+import sh.libre.scim.core.ScimChangeLog;
+import sh.libre.scim.core.ScimClientRegistry;
+import sh.libre.scim.core.ScimComponentCache;
 import sh.libre.scim.core.ScimDispatcher;
 import sh.libre.scim.core.UserAdapter;
 
@@ -27,6 +32,7 @@ import de.captaingoldfish.scim.sdk.common.constants.HttpHeader;
 public class ScimStorageProviderFactory
         implements UserStorageProviderFactory<ScimStorageProvider>, ImportSynchronization {
     final private Logger LOGGER = Logger.getLogger(ScimStorageProviderFactory.class);
+    final private ScimClientRegistry registry = ScimClientRegistry.getInstance();
     public final static String ID = "scim";
     protected static final List<ProviderConfigProperty> configMetadata;
     static {
@@ -94,11 +100,60 @@ public class ScimStorageProviderFactory
                 .defaultValue("CREATE_LOCAL")
                 .add()
                 .property()
+                .name("sync-import-page-size")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Import page size")
+                .helpText("Number of remote resources read per request during import")
+                .defaultValue("100")
+                .add()
+                .property()
+                .name("sync-import-prefetch")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .label("Prefetch import pages")
+                .helpText("Read the next page while the current one is being reconciled")
+                .defaultValue(false)
+                .add()
+                .property()
                 .name("sync-refresh")
                 .type(ProviderConfigProperty.BOOLEAN_TYPE)
                 .label("Enable refresh during sync")
                 .add()
                 .property()
+                .name("sync-refresh-concurrency")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Refresh concurrency")
+                .helpText("Number of resources refreshed in parallel during sync")
+                .defaultValue("1")
+                .add()
+                .property()
+                .name("max-in-flight")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Maximum concurrent requests")
+                .helpText("Maximum number of requests sent at the same time to the endpoint")
+                .defaultValue("8")
+                .add()
+                .property()
+                .name("rate-limit-adaptive")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .label("Adapt to rate limits")
+                .helpText("Halve the number of concurrent requests when the endpoint answers 429 or 503 or times out, then grow it back up to the maximum while responses are healthy. Retry-After is always honored.")
+                .defaultValue(true)
+                .add()
+                .property()
+                .name("circuit-breaker-wait")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Circuit breaker wait (seconds)")
+                .helpText("How long calls to the endpoint fail fast after it keeps failing, before a few probe requests are let through. Operations made meanwhile are deferred to the outbox.")
+                .defaultValue("30")
+                .add()
+                .property()
+                .name("sync-bulk")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .label("Use bulk requests during sync")
+                .helpText("Only used when the endpoint advertises bulk support in /ServiceProviderConfig")
+                .defaultValue(false)
+                .add()
+                .property()
                 .name("group-patchOp")
                 .type(ProviderConfigProperty.BOOLEAN_TYPE)
                 .label("Use patchOp for groups")
@@ -106,6 +161,13 @@ public class ScimStorageProviderFactory
                 .defaultValue(false)
                 .add()
                 .property()
+                .name("group-member-chunk-size")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Group member chunk size")
+                .helpText("With patchOp for groups, send group members by chunks of this size instead of all at once. 0 disables chunking.")
+                .defaultValue("0")
+                .add()
+                .property()
                 .name("user-patchOp")
                 .type(ProviderConfigProperty.BOOLEAN_TYPE)
                 .label("Use patchOp for users")
@@ -142,12 +204,12 @@ public class ScimStorageProviderFactory
             public void run(KeycloakSession session) {
                 var realm = session.realms().getRealm(realmId);
                 session.getContext().setRealm(realm);
-                var dispatcher = new ScimDispatcher(session);
+                var dispatcher = new ScimDispatcher(session, registry);
                 if ("true".equals(model.get("propagation-user"))) {
-                    dispatcher.runOne(model, client -> client.sync(UserAdapter.class, result));
+                    dispatcher.runOne(model, client -> client.withRetries().sync(UserAdapter.class, result));
                 }
                 if ("true".equals(model.get("propagation-group"))) {
-                    dispatcher.runOne(model, client -> client.sync(GroupAdapter.class, result));
+                    dispatcher.runOne(model, client -> client.withRetries().sync(GroupAdapter.class, result));
                 }
             }
 
@@ -157,10 +219,74 @@ public class ScimStorageProviderFactory
 
     }
 
+    @Override
+    public void onCreate(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        ScimComponentCache.getInstance().invalidate(session, realm.getId());
+    }
+
+    @Override
+    public void onUpdate(KeycloakSession session, RealmModel realm, ComponentModel oldModel, ComponentModel newModel) {
+        registry.invalidate(oldModel.getId());
+        ScimComponentCache.getInstance().invalidate(session, realm.getId());
+    }
+
+    @Override
+    public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        registry.invalidate(model.getId());
+        ScimComponentCache.getInstance().invalidate(session, realm.getId());
+    }
+
+    @Override
+    public void close() {
+        registry.close();
+    }
+
+    /**
+     * Only pushes the users and groups recorded in the change log since
+     * {@code lastSync}. Falls back to a full sync when the change log doesn't
+     * cover the whole period or recorded a change affecting the whole realm,
+     * e.g. to the SCIM roles granted by a role.
+     */
     @Override
     public SynchronizationResult syncSince(Date lastSync, KeycloakSessionFactory sessionFactory, String realmId,
             UserStorageProviderModel model) {
-        return this.sync(sessionFactory, realmId, model);
+        if (lastSync == null || lastSync.getTime() < Time.currentTimeMillis() - ScimChangeLog.RETENTION) {
+            return this.sync(sessionFactory, realmId, model);
+        }
+        LOGGER.infof("sync since %s", lastSync);
+        var result = new SynchronizationResult();
+        var fullSync = new boolean[1];
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, new KeycloakSessionTask() {
+
+            @Override
+            public void run(KeycloakSession session) {
+                var realm = session.realms().getRealm(realmId);
+                session.getContext().setRealm(realm);
+                var changes = ScimChangeLog.changedSince(session, realmId, lastSync.getTime());
+                if (ScimChangeLog.requiresFullSync(changes)) {
+                    fullSync[0] = true;
+                    return;
+                }
+                var dispatcher = new ScimDispatcher(session, registry);
+                if ("true".equals(model.get("propagation-user"))) {
+                    var ids = changes.stream().filter(c -> ScimDispatcher.SCOPE_USER.equals(c.scope()))
+                            .map(ScimChangeLog.Change::id).toList();
+                    dispatcher.runOne(model, client -> client.withRetries().refreshChanged(UserAdapter.class, ids, result));
+                }
+                if ("true".equals(model.get("propagation-group"))) {
+                    var ids = changes.stream().filter(c -> ScimDispatcher.SCOPE_GROUP.equals(c.scope()))
+                            .map(ScimChangeLog.Change::id).toList();
+                    dispatcher.runOne(model, client -> client.withRetries().refreshChanged(GroupAdapter.class, ids, result));
+                }
+            }
+
+        });
+
+        if (fullSync[0]) {
+            LOGGER.info("roles changed since the last sync, running a full sync");
+            return this.sync(sessionFactory, realmId, model);
+        }
+        return result;
     }
 
 }
@@ -0,0 +1,84 @@
+package sh.libre.scim.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.component.ComponentModel;
+
+class ScimCoalescerTest {
+    private static final String USER = ScimDispatcher.SCOPE_USER;
+
+    @Test
+    void createThenReplaceStaysACreate() {
+        assertEquals(ScimOperation.create(USER, "u1"),
+                ScimCoalescer.merge(ScimOperation.create(USER, "u1"), ScimOperation.replace(USER, "u1")));
+    }
+
+    @Test
+    void deleteWinsOverReplaceAndCreate() {
+        assertEquals(ScimOperation.delete(USER, "u1"),
+                ScimCoalescer.merge(ScimOperation.replace(USER, "u1"), ScimOperation.delete(USER, "u1")));
+        assertEquals(ScimOperation.delete(USER, "u1"),
+                ScimCoalescer.merge(ScimOperation.create(USER, "u1"), ScimOperation.delete(USER, "u1")));
+    }
+
+    @Test
+    void operationsOnTheSameResourceAreCollapsed() {
+        var released = new CopyOnWriteArrayList<ScimOperation>();
+        var coalescer = new ScimCoalescer(60_000, (realmId, model, operation) -> released.add(operation));
+        var model = component("c1");
+        coalescer.submit("realm", model, ScimOperation.create(USER, "u1"));
+        coalescer.submit("realm", model, ScimOperation.replace(USER, "u1"));
+        coalescer.submit("realm", model, ScimOperation.replace(USER, "u1"));
+        coalescer.submit("realm", component("c2"), ScimOperation.replace(USER, "u1"));
+        assertEquals(2, coalescer.getPendingCount());
+        assertEquals(2, coalescer.getCoalescedCount());
+
+        coalescer.close();
+        assertEquals(Set.of(ScimOperation.create(USER, "u1"), ScimOperation.replace(USER, "u1")),
+                Set.copyOf(released));
+        assertEquals(2, released.size());
+        assertEquals(0, coalescer.getPendingCount());
+    }
+
+    @Test
+    void membershipChangesAreKeyedByMember() {
+        var released = new CopyOnWriteArrayList<ScimOperation>();
+        var coalescer = new ScimCoalescer(60_000, (realmId, model, operation) -> released.add(operation));
+        var model = component("c1");
+        coalescer.submit("realm", model, ScimOperation.addMember("g1", "u1"));
+        coalescer.submit("realm", model, ScimOperation.addMember("g1", "u2"));
+        coalescer.submit("realm", model, ScimOperation.removeMember("g1", "u1"));
+        assertEquals(1, coalescer.getCoalescedCount());
+
+        coalescer.close();
+        assertEquals(Set.of(ScimOperation.addMember("g1", "u2"), ScimOperation.removeMember("g1", "u1")),
+                Set.copyOf(released));
+        assertEquals(2, released.size());
+    }
+
+    @Test
+    void releasesAfterTheWindow() throws Exception {
+        var released = new CopyOnWriteArrayList<ScimOperation>();
+        var coalescer = new ScimCoalescer(10, (realmId, model, operation) -> released.add(operation));
+        try {
+            coalescer.submit("realm", component("c1"), ScimOperation.replace(USER, "u1"));
+            for (int i = 0; i < 500 && released.isEmpty(); i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(List.of(ScimOperation.replace(USER, "u1")), released);
+        } finally {
+            coalescer.close();
+        }
+    }
+
+    private static ComponentModel component(String id) {
+        var model = new ComponentModel();
+        model.setId(id);
+        return model;
+    }
+}
@@ -0,0 +1,141 @@
+package sh.libre.scim.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+
+import org.hibernate.cfg.Configuration;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakSessionTask;
+
+import sh.libre.scim.jpa.ScimOutbox;
+
+class ScimOutboxPollerTest {
+    private static EntityManagerFactory emf;
+    private EntityManager em;
+
+    @BeforeAll
+    static void createDatabase() {
+        emf = new Configuration()
+                .setProperty("hibernate.connection.url", "jdbc:h2:mem:scim-outbox;DB_CLOSE_DELAY=-1")
+                .setProperty("hibernate.hbm2ddl.auto", "create")
+                .addAnnotatedClass(ScimOutbox.class)
+                .buildSessionFactory();
+    }
+
+    @AfterAll
+    static void dropDatabase() {
+        emf.close();
+    }
+
+    @BeforeEach
+    void begin() {
+        em = emf.createEntityManager();
+        em.getTransaction().begin();
+    }
+
+    @AfterEach
+    void rollback() {
+        em.getTransaction().rollback();
+        em.close();
+    }
+
+    @Test
+    void laterEntriesWaitForARescheduledOne() {
+        var poller = new ScimOutboxPoller(null, null, 10, 5, 1000);
+        em.persist(entry("create-u1", "c1", "u1", "CREATE", 1, 10_000));
+        em.persist(entry("delete-u1", "c1", "u1", "DELETE", 2, 0));
+        em.persist(entry("replace-u2", "c1", "u2", "REPLACE", 3, 0));
+        em.persist(entry("replace-u1-c2", "c2", "u1", "REPLACE", 4, 0));
+        em.flush();
+
+        assertEquals(List.of("replace-u2", "replace-u1-c2"), ids(poller.findDue(em, 5_000)));
+        assertEquals(List.of("create-u1", "delete-u1", "replace-u2", "replace-u1-c2"),
+                ids(poller.findDue(em, 20_000)));
+    }
+
+    @Test
+    void rescheduleBacksOffThenGivesUp() {
+        var poller = new ScimOutboxPoller(null, null, 10, 3, 1000);
+        em.persist(entry("create-u1", "c1", "u1", "CREATE", 1, 0));
+        em.flush();
+
+        var before = Time.currentTimeMillis();
+        poller.reschedule(em, "create-u1");
+        var entry = em.find(ScimOutbox.class, "create-u1");
+        assertEquals(1, entry.getAttempts());
+        assertTrue(entry.getNextAttemptAt() >= before + 2000);
+
+        poller.reschedule(em, "create-u1");
+        assertEquals(2, entry.getAttempts());
+        assertTrue(entry.getNextAttemptAt() >= before + 4000);
+
+        poller.reschedule(em, "create-u1");
+        assertNull(em.find(ScimOutbox.class, "create-u1"));
+    }
+
+    @Test
+    void failureHoldsBackTheResourceForTheRestOfTheBatch() {
+        var delivered = new ArrayList<String>();
+        var rescheduled = new ArrayList<String>();
+        var poller = new ScimOutboxPoller(null, null, 10, 5, 1000) {
+            @Override
+            protected void runInTransaction(KeycloakSessionFactory sessionFactory, KeycloakSessionTask task) {
+                task.run(null);
+            }
+
+            @Override
+            protected void deliver(KeycloakSession session, ScimOutbox entry, ScimOperation operation) {
+                delivered.add(entry.getId());
+                if (entry.getId().equals("create-u1")) {
+                    throw new ScimResponseException("User", "create", "u1", 503, "");
+                }
+            }
+
+            @Override
+            protected void reschedule(EntityManager em, String id) {
+                rescheduled.add(id);
+            }
+        };
+
+        poller.drain(null, List.of(
+                entry("create-u1", "c1", "u1", "CREATE", 1, 0),
+                entry("replace-u2", "c1", "u2", "REPLACE", 2, 0),
+                entry("delete-u1", "c1", "u1", "DELETE", 3, 0),
+                entry("replace-u1-c2", "c2", "u1", "REPLACE", 4, 0)));
+
+        assertEquals(List.of("create-u1", "replace-u2", "replace-u1-c2"), delivered);
+        assertEquals(List.of("create-u1"), rescheduled);
+    }
+
+    private static ScimOutbox entry(String id, String componentId, String resourceId, String action,
+            long createdAt, long nextAttemptAt) {
+        var entry = new ScimOutbox();
+        entry.setId(id);
+        entry.setRealmId("realm");
+        entry.setComponentId(componentId);
+        entry.setScope(ScimDispatcher.SCOPE_USER);
+        entry.setAction(action);
+        entry.setResourceId(resourceId);
+        entry.setCreatedAt(createdAt);
+        entry.setNextAttemptAt(nextAttemptAt);
+        return entry;
+    }
+
+    private static List<String> ids(List<ScimOutbox> entries) {
+        return entries.stream().map(ScimOutbox::getId).toList();
+    }
+}
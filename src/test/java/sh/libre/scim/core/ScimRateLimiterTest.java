@@ -0,0 +1,121 @@
+package sh.libre.scim.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class ScimRateLimiterTest {
+
+    @Test
+    void retryAfterInSeconds() {
+        assertEquals(120_000, ScimRateLimiter.retryAfterMillis(Map.of("Retry-After", "120")));
+        assertEquals(5_000, ScimRateLimiter.retryAfterMillis(Map.of("retry-after", " 5 ")));
+    }
+
+    @Test
+    void retryAfterAsHttpDate() {
+        var date = ZonedDateTime.now(ZoneOffset.UTC).plusSeconds(60).format(DateTimeFormatter.RFC_1123_DATE_TIME);
+        var millis = ScimRateLimiter.retryAfterMillis(Map.of("Retry-After", date));
+        // The date has a one second precision.
+        assertTrue(millis > 58_000 && millis <= 60_000, "got " + millis);
+    }
+
+    @Test
+    void retryAfterInThePastOrInvalid() {
+        var past = ZonedDateTime.now(ZoneOffset.UTC).minusMinutes(1).format(DateTimeFormatter.RFC_1123_DATE_TIME);
+        assertEquals(0, ScimRateLimiter.retryAfterMillis(Map.of("Retry-After", past)));
+        assertEquals(0, ScimRateLimiter.retryAfterMillis(Map.of("Retry-After", "soon")));
+        assertEquals(0, ScimRateLimiter.retryAfterMillis(Map.of("Retry-After", "")));
+        assertEquals(0, ScimRateLimiter.retryAfterMillis(Map.of()));
+        assertEquals(0, ScimRateLimiter.retryAfterMillis(null));
+    }
+
+    @Test
+    void throttlingHalvesTheLimitOncePerWindow() {
+        var limiter = new ScimRateLimiter("test", 8, true);
+        limiter.acquire();
+        limiter.acquire();
+        limiter.onResponse(429, null);
+        assertEquals(4, limiter.getLimit());
+        limiter.onResponse(503, null);
+        assertEquals(4, limiter.getLimit());
+        assertEquals(2, limiter.getThrottledCount());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void healthyResponsesGrowTheLimitBackUpToTheMaximum() {
+        var limiter = new ScimRateLimiter("test", 8, true);
+        limiter.acquire();
+        limiter.onResponse(429, null);
+        assertEquals(4, limiter.getLimit());
+        // Each healthy response adds 1/limit, so about limit responses add one.
+        for (int i = 0; i < 5; i++) {
+            limiter.acquire();
+            limiter.onResponse(200, null);
+        }
+        assertEquals(5, limiter.getLimit());
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire();
+            limiter.onResponse(200, null);
+        }
+        assertEquals(8, limiter.getLimit());
+    }
+
+    @Test
+    void onlyCongestionErrorsLowerTheLimit() {
+        var limiter = new ScimRateLimiter("test", 8, true);
+        limiter.acquire();
+        limiter.onError(false);
+        assertEquals(8, limiter.getLimit());
+        limiter.acquire();
+        limiter.onError(true);
+        assertEquals(4, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void fixedLimitIgnoresThrottling() {
+        var limiter = new ScimRateLimiter("test", 8, false);
+        limiter.acquire();
+        limiter.onResponse(429, null);
+        assertEquals(8, limiter.getLimit());
+        assertEquals(1, limiter.getThrottledCount());
+    }
+
+    @Test
+    void acquireWaitsForAReleasedSlot() throws Exception {
+        var limiter = new ScimRateLimiter("test", 1, true);
+        limiter.acquire();
+        var waiting = CompletableFuture.runAsync(limiter::acquire);
+        TimeUnit.MILLISECONDS.sleep(100);
+        assertFalse(waiting.isDone());
+        limiter.onResponse(200, null);
+        waiting.get(5, TimeUnit.SECONDS);
+        assertEquals(1, limiter.getInFlight());
+    }
+
+    @Test
+    void interruptedAcquireFailsAndKeepsTheFlag() {
+        var limiter = new ScimRateLimiter("test", 1, true);
+        limiter.acquire();
+        Thread.currentThread().interrupt();
+        try {
+            assertThrows(IllegalStateException.class, limiter::acquire);
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+        assertEquals(1, limiter.getInFlight());
+    }
+}
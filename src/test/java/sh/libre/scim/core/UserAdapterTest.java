@@ -0,0 +1,35 @@
+package sh.libre.scim.core;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RoleModel;
+
+class UserAdapterTest {
+
+    @Test
+    void fingerprintDoesNotDependOnTheRoleOrder() {
+        var admin = Stubs.role("admin", true);
+        var viewer = Stubs.role("viewer", true);
+        var editor = Stubs.role("editor", true);
+        var group = Stubs.group("group-a", List.of(Stubs.role("auditor", true)));
+
+        var first = adapter(List.of(admin, viewer, editor), group);
+        var second = adapter(List.of(editor, admin, viewer), group);
+
+        assertArrayEquals(new String[] { "admin", "auditor", "editor", "viewer" }, first.getRoles());
+        assertArrayEquals(first.getRoles(), second.getRoles());
+        assertEquals(Adapter.fingerprint(first.toSCIM(false)), Adapter.fingerprint(second.toSCIM(false)));
+    }
+
+    private static UserAdapter adapter(List<RoleModel> roles, GroupModel group) {
+        var session = Stubs.session(Stubs.realm(), null, List.of());
+        var adapter = new UserAdapter(session, Stubs.COMPONENT_ID);
+        adapter.apply(Stubs.user("user-0", roles, List.of(group)));
+        return adapter;
+    }
+}
@@ -0,0 +1,141 @@
+package sh.libre.scim.core;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import jakarta.persistence.EntityManager;
+
+import org.keycloak.component.ComponentModel;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.GroupProvider;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+
+/**
+ * In-memory stand-ins for the Keycloak models read by the adapters, shared by
+ * the tests, the benchmarks and the load harness. Only the methods the
+ * extension calls are implemented, anything else throws so a benchmark can't
+ * silently measure a default value.
+ */
+public class Stubs {
+    public static final String REALM_ID = "realm";
+    public static final String COMPONENT_ID = "component";
+
+    private Stubs() {
+    }
+
+    /**
+     * A proxy of {@code type} answering the methods in {@code methods} by name,
+     * with identity {@code equals}/{@code hashCode}.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T stub(Class<T> type, Map<String, Function<Object[], Object>> methods) {
+        return (T) Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[] { type },
+                (proxy, method, args) -> {
+                    var implementation = methods.get(method.getName());
+                    if (implementation != null) {
+                        return implementation.apply(args == null ? new Object[0] : args);
+                    }
+                    switch (method.getName()) {
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return type.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+                        default:
+                            throw new UnsupportedOperationException(type.getSimpleName() + "." + method.getName());
+                    }
+                });
+    }
+
+    public static RealmModel realm() {
+        return realm(REALM_ID, List.of());
+    }
+
+    /**
+     * A realm named {@code id} whose components are read from
+     * {@code components} on each call.
+     */
+    public static RealmModel realm(String id, List<ComponentModel> components) {
+        return stub(RealmModel.class, Map.of(
+                "getId", args -> id,
+                "getName", args -> id,
+                "getComponentsStream", args -> components.stream()));
+    }
+
+    public static RoleModel role(String name, boolean scim) {
+        var attribute = scim ? "true" : null;
+        return stub(RoleModel.class, Map.of(
+                "getId", args -> name,
+                "getName", args -> name,
+                "getFirstAttribute", args -> "scim".equals(args[0]) ? attribute : null,
+                "isComposite", args -> false,
+                "getCompositesStream", args -> Stream.empty()));
+    }
+
+    /**
+     * A list of roles named {@code prefix-i}, every other one flagged with
+     * {@code scim=true}.
+     */
+    public static List<RoleModel> roles(String prefix, int count) {
+        return Stream.iterate(0, i -> i + 1).limit(count).map(i -> role(prefix + "-" + i, i % 2 == 0)).toList();
+    }
+
+    public static GroupModel group(String id, List<RoleModel> roles) {
+        return stub(GroupModel.class, Map.of(
+                "getId", args -> id,
+                "getName", args -> id,
+                "getFirstAttribute", args -> null,
+                "getRoleMappingsStream", args -> roles.stream(),
+                "getParent", args -> null,
+                "getParentId", args -> null));
+    }
+
+    public static UserModel user(String id, List<RoleModel> roles, List<GroupModel> groups) {
+        return stub(UserModel.class, Map.of(
+                "getId", args -> id,
+                "getUsername", args -> "user-" + id,
+                "getFirstName", args -> "First",
+                "getLastName", args -> "Last " + id,
+                "getEmail", args -> id + "@example.org",
+                "isEnabled", args -> true,
+                "getFirstAttribute", args -> null,
+                "getRoleMappingsStream", args -> roles.stream(),
+                "getGroupsStream", args -> groups.stream()));
+    }
+
+    /**
+     * A session on {@link #realm()} whose entity manager is {@code em} and
+     * whose group members are {@code members}.
+     */
+    public static KeycloakSession session(RealmModel realm, EntityManager em, List<UserModel> members) {
+        var context = stub(KeycloakContext.class, Map.of("getRealm", args -> realm));
+        var jpa = stub(JpaConnectionProvider.class, Map.of("getEntityManager", args -> em));
+        var users = stub(UserProvider.class, Map.of(
+                "getGroupMembersStream", args -> args.length == 4
+                        ? members.stream().skip((Integer) args[2]).limit((Integer) args[3])
+                        : members.stream(),
+                "getUserById", args -> members.stream().filter(u -> u.getId().equals(args[1])).findFirst()
+                        .orElse(null)));
+        var groups = stub(GroupProvider.class, Map.of());
+        // No transaction: mappings read go straight to the cache.
+        var transaction = stub(KeycloakTransactionManager.class, Map.of("isActive", args -> false));
+        return stub(KeycloakSession.class, Map.of(
+                "getContext", args -> context,
+                "getTransactionManager", args -> transaction,
+                "getAttribute", args -> null,
+                "getProvider", args -> JpaConnectionProvider.class.equals(args[0]) ? jpa : null,
+                "users", args -> users,
+                "groups", args -> groups));
+    }
+}